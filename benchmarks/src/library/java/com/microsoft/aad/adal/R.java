@@ -0,0 +1,47 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+/**
+ * Resource ids for compiling the library without the Android build. Library
+ * resources are not packaged, so UI classes are not usable in benchmarks.
+ */
+public final class R {
+
+    private R() {
+    }
+
+    public static final class id {
+        public static final int editPassword = 1;
+
+        public static final int editUserName = 2;
+    }
+
+    public static final class layout {
+        public static final int http_auth_dialog = 3;
+    }
+
+    public static final class string {
+        public static final int http_auth_dialog_cancel = 4;
+
+        public static final int http_auth_dialog_login = 5;
+
+        public static final int http_auth_dialog_title = 6;
+    }
+}
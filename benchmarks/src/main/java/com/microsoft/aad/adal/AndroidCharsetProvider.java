@@ -0,0 +1,47 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.nio.charset.Charset;
+import java.nio.charset.spi.CharsetProvider;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Android accepts "UTF_8" as a charset name and the library uses it. Plain
+ * JVM does not, so it is provided here for benchmarks.
+ */
+public class AndroidCharsetProvider extends CharsetProvider {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override
+    public Iterator<Charset> charsets() {
+        return Collections.<Charset> emptyList().iterator();
+    }
+
+    @Override
+    public Charset charsetForName(String charsetName) {
+        if (AuthenticationConstants.ENCODING_UTF8.equalsIgnoreCase(charsetName)) {
+            return UTF8;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,255 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/**
+ * Context for benchmarks on a plain JVM. Files are stored in a temporary
+ * directory and shared preferences are kept in memory.
+ */
+class BenchmarkContext extends ContextWrapper {
+
+    static final String AUTHORITY = "https://login.windows.net/common";
+
+    static final String RESOURCE = "https://graph.windows.net";
+
+    static final String CLIENT_ID = "650a6609-5463-4bc4-b7c6-19df7990a8bc";
+
+    static final String ID_TOKEN = "eyJ0eXAiOiJKV1QiLCJhbGciOiJub25lIn0.eyJhdWQiOiJlNzBiMTE1ZS1hYzBhLTQ4MjMtODVkYS04ZjRiN2I0ZjAwZTYiLCJpc3MiOiJodHRwczovL3N0cy53aW5kb3dzLm5ldC8zMGJhYTY2Ni04ZGY4LTQ4ZTctOTdlNi03N2NmZDA5OTU5NjMvIiwibmJmIjoxMzc2NDI4MzEwLCJleHAiOjEzNzY0NTcxMTAsInZlciI6IjEuMCIsInRpZCI6IjMwYmFhNjY2LThkZjgtNDhlNy05N2U2LTc3Y2ZkMDk5NTk2MyIsIm9pZCI6IjRmODU5OTg5LWEyZmYtNDExZS05MDQ4LWMzMjIyNDdhYzYyYyIsInVwbiI6ImFkbWluQGFhbHRlc3RzLm9ubWljcm9zb2Z0LmNvbSIsInVuaXF1ZV9uYW1lIjoiYWRtaW5AYWFsdGVzdHMub25taWNyb3NvZnQuY29tIiwic3ViIjoiVDU0V2hGR1RnbEJMN1VWYWtlODc5UkdhZEVOaUh5LXNjenNYTmFxRF9jNCIsImZhbWlseV9uYW1lIjoiU2VwZWhyaSIsImdpdmVuX25hbWUiOiJBZnNoaW4ifQ.";
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final int TOKEN_LENGTH = 1024;
+
+    private static final long EXPIRES_IN_MILLIS = 3600 * 1000L;
+
+    private final File mDirectory;
+
+    private final ConcurrentHashMap<String, MemorySharedPreferences> mPreferences = new ConcurrentHashMap<String, MemorySharedPreferences>();
+
+    BenchmarkContext() throws IOException {
+        super(null);
+        mDirectory = File.createTempFile("adal-benchmark", "");
+        if (!mDirectory.delete() || !mDirectory.mkdirs()) {
+            throw new IOException("Benchmark directory is not created");
+        }
+    }
+
+    /**
+     * Uses the secret key from settings and disables logging, so the
+     * benchmarks measure the library code.
+     */
+    static void setUpSettings() {
+        byte[] key = new byte[KEY_LENGTH];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)i;
+        }
+
+        AuthenticationSettings.INSTANCE.setSecretKey(key);
+        Logger.getInstance().setAndroidLogEnabled(false);
+        Logger.getInstance().setExternalLogger(null);
+    }
+
+    static TokenCacheItem createItem(int index) {
+        TokenCacheItem item = new TokenCacheItem();
+        item.setAuthority(AUTHORITY);
+        item.setResource(RESOURCE + "/" + index);
+        item.setClientId(CLIENT_ID);
+        item.setAccessToken(createToken('a', index));
+        item.setRefreshToken(createToken('r', index));
+        item.setRawIdToken(ID_TOKEN);
+        item.setExpiresOn(new Date(System.currentTimeMillis() + EXPIRES_IN_MILLIS));
+        item.setUserInfo(new UserInfo("user" + index, "Given", "Family", "idp", "user" + index
+                + "@contoso.com"));
+        return item;
+    }
+
+    private static String createToken(char prefix, int index) {
+        StringBuilder token = new StringBuilder(TOKEN_LENGTH);
+        token.append(prefix).append(index).append('.');
+        while (token.length() < TOKEN_LENGTH) {
+            token.append((char)('a' + token.length() % 26));
+        }
+
+        return token.toString();
+    }
+
+    /**
+     * Deletes files written by the benchmark.
+     */
+    void delete() {
+        delete(mDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    @Override
+    public File getDir(String name, int mode) {
+        File dir = new File(mDirectory, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.microsoft.aad.adal.benchmarks";
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        MemorySharedPreferences prefs = mPreferences.get(name);
+        if (prefs == null) {
+            mPreferences.putIfAbsent(name, new MemorySharedPreferences());
+            prefs = mPreferences.get(name);
+        }
+
+        return prefs;
+    }
+
+    @Override
+    public Context createPackageContext(String packageName, int flags) {
+        return this;
+    }
+
+    /**
+     * Shared preferences kept in memory. Edits are applied at commit and
+     * listeners are notified in the calling thread.
+     */
+    private static final class MemorySharedPreferences implements SharedPreferences {
+
+        private final ConcurrentHashMap<String, String> mValues = new ConcurrentHashMap<String, String>();
+
+        private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<String, String>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            String value = mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            mListeners.addIfAbsent(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            mListeners.remove(listener);
+        }
+
+        private void notifyListeners(String key) {
+            for (OnSharedPreferenceChangeListener listener : mListeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+
+        private final class MemoryEditor implements Editor {
+
+            private final HashMap<String, String> mChanges = new HashMap<String, String>();
+
+            private boolean mClear = false;
+
+            @Override
+            public Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mChanges.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                ArrayList<String> changed = new ArrayList<String>();
+                if (mClear) {
+                    changed.addAll(mValues.keySet());
+                    mValues.clear();
+                }
+
+                for (Map.Entry<String, String> change : mChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        mValues.remove(change.getKey());
+                    } else {
+                        mValues.put(change.getKey(), change.getValue());
+                    }
+
+                    changed.add(change.getKey());
+                }
+
+                for (String key : changed) {
+                    notifyListeners(key);
+                }
+
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the file cache at startup and writing it after a change. Writes
+ * are measured with and without the write delay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileTokenCacheStoreBenchmark {
+
+    private static final String FILE_NAME = "benchmark.cache";
+
+    private static final long WRITE_DELAY_MILLIS = 1000;
+
+    @Param({
+            "10", "100", "1000"
+    })
+    public int mItemCount;
+
+    private BenchmarkContext mContext;
+
+    private FileTokenCacheStore mStore;
+
+    private FileTokenCacheStore mDelayedStore;
+
+    private TokenCacheItem mItem;
+
+    private String mKey;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkContext.setUpSettings();
+        mContext = new BenchmarkContext();
+        mStore = new FileTokenCacheStore(mContext, FILE_NAME);
+        for (int i = 0; i < mItemCount; i++) {
+            TokenCacheItem item = BenchmarkContext.createItem(i);
+            mStore.setItem(CacheKey.createCacheKey(item), item);
+        }
+
+        mDelayedStore = new FileTokenCacheStore(mContext, "delayed." + FILE_NAME,
+                WRITE_DELAY_MILLIS);
+        mItem = BenchmarkContext.createItem(0);
+        mKey = CacheKey.createCacheKey(mItem);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDelayedStore.flush();
+        mContext.delete();
+    }
+
+    @Benchmark
+    public FileTokenCacheStore load() {
+        return new FileTokenCacheStore(mContext, FILE_NAME);
+    }
+
+    @Benchmark
+    public void write() {
+        mStore.setItem(mKey, mItem);
+    }
+
+    @Benchmark
+    public void writeDelayed() {
+        mDelayedStore.setItem(mKey, mItem);
+    }
+
+    @Benchmark
+    public void writeAndFlush() {
+        mDelayedStore.setItem(mKey, mItem);
+        mDelayedStore.flush();
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processing of token responses including the id token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Oauth2Benchmark {
+
+    private HashMap<String, String> mTokenResponse;
+
+    private HashMap<String, String> mErrorResponse;
+
+    @Setup
+    public void setUp() {
+        BenchmarkContext.setUpSettings();
+        TokenCacheItem item = BenchmarkContext.createItem(0);
+        mTokenResponse = new HashMap<String, String>();
+        mTokenResponse.put(AuthenticationConstants.OAuth2.ACCESS_TOKEN, item.getAccessToken());
+        mTokenResponse.put(AuthenticationConstants.OAuth2.REFRESH_TOKEN, item.getRefreshToken());
+        mTokenResponse.put(AuthenticationConstants.OAuth2.ID_TOKEN, BenchmarkContext.ID_TOKEN);
+        mTokenResponse.put(AuthenticationConstants.AAD.RESOURCE, BenchmarkContext.RESOURCE);
+        mTokenResponse.put("expires_in", "3600");
+
+        mErrorResponse = new HashMap<String, String>();
+        mErrorResponse.put(AuthenticationConstants.OAuth2.ERROR, "invalid_grant");
+        mErrorResponse.put(AuthenticationConstants.OAuth2.ERROR_DESCRIPTION,
+                "AADSTS70000: refresh token is expired");
+    }
+
+    @Benchmark
+    public AuthenticationResult processTokenResponse() {
+        return Oauth2.processUIResponseParams(mTokenResponse);
+    }
+
+    @Benchmark
+    public AuthenticationResult processErrorResponse() {
+        return Oauth2.processUIResponseParams(mErrorResponse);
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Gson round trips of cache items with the same configuration as
+ * {@link DefaultTokenCacheStore}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private Gson mGson;
+
+    private TokenCacheItem mItem;
+
+    private String mJson;
+
+    @Setup
+    public void setUp() {
+        BenchmarkContext.setUpSettings();
+        mGson = new GsonBuilder().registerTypeAdapter(Date.class, new DateTimeAdapter()).create();
+        mItem = BenchmarkContext.createItem(0);
+        mJson = mGson.toJson(mItem);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return mGson.toJson(mItem);
+    }
+
+    @Benchmark
+    public TokenCacheItem fromJson() {
+        return mGson.fromJson(mJson, TokenCacheItem.class);
+    }
+
+    @Benchmark
+    public TokenCacheItem roundTrip() {
+        return mGson.fromJson(mGson.toJson(mItem), TokenCacheItem.class);
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Encryption of serialized cache items with the secret key from settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageHelperBenchmark {
+
+    private BenchmarkContext mContext;
+
+    private StorageHelper mHelper;
+
+    private String mClearText;
+
+    private String mEncrypted;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, IOException {
+        BenchmarkContext.setUpSettings();
+        mContext = new BenchmarkContext();
+        mHelper = new StorageHelper(mContext);
+        mClearText = new Gson().toJson(BenchmarkContext.createItem(0));
+        mEncrypted = mHelper.encrypt(mClearText);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mContext.delete();
+    }
+
+    @Benchmark
+    public String encrypt() throws GeneralSecurityException, IOException {
+        return mHelper.encrypt(mClearText);
+    }
+
+    @Benchmark
+    public String decrypt() throws GeneralSecurityException, IOException {
+        return mHelper.decrypt(mEncrypted);
+    }
+}
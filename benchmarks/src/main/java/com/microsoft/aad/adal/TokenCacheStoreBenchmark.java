@@ -0,0 +1,135 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads and writes on the cache backends with the same items, so results can
+ * be compared. The contended group runs readers and a writer on one store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenCacheStoreBenchmark {
+
+    @Param({
+            "memory", "file", "default"
+    })
+    public String mBackend;
+
+    @Param({
+            "100"
+    })
+    public int mItemCount;
+
+    private BenchmarkContext mContext;
+
+    private ITokenCacheStore mStore;
+
+    private String[] mKeys;
+
+    private TokenCacheItem[] mItems;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, IOException {
+        BenchmarkContext.setUpSettings();
+        mContext = new BenchmarkContext();
+        mStore = createStore(mContext, mBackend);
+        mKeys = new String[mItemCount];
+        mItems = new TokenCacheItem[mItemCount];
+        for (int i = 0; i < mItemCount; i++) {
+            mItems[i] = BenchmarkContext.createItem(i);
+            mKeys[i] = CacheKey.createCacheKey(mItems[i]);
+            mStore.setItem(mKeys[i], mItems[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mStore instanceof FileTokenCacheStore) {
+            ((FileTokenCacheStore)mStore).flush();
+        }
+
+        mContext.delete();
+    }
+
+    static ITokenCacheStore createStore(BenchmarkContext context, String backend)
+            throws GeneralSecurityException {
+        if ("memory".equals(backend)) {
+            return new MemoryTokenCacheStore();
+        } else if ("file".equals(backend)) {
+            return new FileTokenCacheStore(context, "benchmark.cache");
+        } else if ("default".equals(backend)) {
+            return new DefaultTokenCacheStore(context);
+        }
+
+        throw new IllegalArgumentException("backend");
+    }
+
+    private int nextIndex() {
+        return ThreadLocalRandom.current().nextInt(mItemCount);
+    }
+
+    @Benchmark
+    public TokenCacheItem getItem() {
+        return mStore.getItem(mKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public void setItem() {
+        int index = nextIndex();
+        mStore.setItem(mKeys[index], mItems[index]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public TokenCacheItem contendedGetItem() {
+        return getItem();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedSetItem() {
+        setItem();
+    }
+}
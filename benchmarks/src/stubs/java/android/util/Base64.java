@@ -0,0 +1,66 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package android.util;
+
+/**
+ * Plain JVM replacement of the Android class for benchmarks. It supports the
+ * flags used by the library.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+
+    public static final int NO_PADDING = 1;
+
+    public static final int NO_WRAP = 2;
+
+    public static final int CRLF = 4;
+
+    public static final int URL_SAFE = 8;
+
+    public static final int NO_CLOSE = 16;
+
+    public static byte[] encode(byte[] input, int flags) {
+        java.util.Base64.Encoder encoder = (flags & URL_SAFE) != 0 ? java.util.Base64
+                .getUrlEncoder() : java.util.Base64.getEncoder();
+        if ((flags & NO_PADDING) != 0) {
+            encoder = encoder.withoutPadding();
+        }
+
+        return encoder.encode(input);
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return new String(encode(input, flags), java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return decode(str.getBytes(java.nio.charset.StandardCharsets.US_ASCII), flags);
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        java.util.Base64.Decoder decoder = (flags & URL_SAFE) != 0 ? java.util.Base64
+                .getUrlDecoder() : java.util.Base64.getMimeDecoder();
+        try {
+            return decoder.decode(input);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("bad base-64", e);
+        }
+    }
+}
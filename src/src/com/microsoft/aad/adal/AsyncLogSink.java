@@ -0,0 +1,133 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.microsoft.aad.adal.Logger.ILogger;
+import com.microsoft.aad.adal.Logger.LogLevel;
+
+/**
+ * Bounded buffer of log messages that are passed to the external logger on a
+ * background thread. Oldest messages are dropped when the buffer is full, so
+ * logging never blocks the caller.
+ */
+final class AsyncLogSink {
+
+    private static final String TAG = "AsyncLogSink";
+
+    private static final int CAPACITY = 1024;
+
+    private final ArrayBlockingQueue<LogRecord> mRecords = new ArrayBlockingQueue<LogRecord>(
+            CAPACITY);
+
+    private final Thread mThread;
+
+    private volatile boolean mShutdown = false;
+
+    private int mDropped = 0;
+
+    /**
+     * Log message waiting for the external logger.
+     */
+    private static final class LogRecord {
+        private final ILogger mLogger;
+
+        private final String mTag;
+
+        private final String mMessage;
+
+        private final String mAdditionalMessage;
+
+        private final LogLevel mLevel;
+
+        private final ADALError mErrorCode;
+
+        LogRecord(ILogger logger, String tag, String message, String additionalMessage,
+                LogLevel level, ADALError errorCode) {
+            mLogger = logger;
+            mTag = tag;
+            mMessage = message;
+            mAdditionalMessage = additionalMessage;
+            mLevel = level;
+            mErrorCode = errorCode;
+        }
+    }
+
+    AsyncLogSink() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    void post(ILogger logger, String tag, String message, String additionalMessage,
+            LogLevel level, ADALError errorCode) {
+        LogRecord record = new LogRecord(logger, tag, message, additionalMessage, level,
+                errorCode);
+        while (!mRecords.offer(record)) {
+            if (mRecords.poll() != null) {
+                synchronized (this) {
+                    mDropped++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the thread after pending messages are passed to the logger.
+     */
+    void shutdown() {
+        mShutdown = true;
+        mThread.interrupt();
+    }
+
+    private void drain() {
+        while (true) {
+            LogRecord record;
+            try {
+                record = mShutdown ? mRecords.poll() : mRecords.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (record == null) {
+                return;
+            }
+
+            int dropped;
+            synchronized (this) {
+                dropped = mDropped;
+                mDropped = 0;
+            }
+
+            if (dropped > 0) {
+                Logger.callExternalLogger(record.mLogger, TAG, dropped
+                        + " log messages are dropped", null, LogLevel.Warn, null);
+            }
+
+            Logger.callExternalLogger(record.mLogger, record.mTag, record.mMessage,
+                    record.mAdditionalMessage, record.mLevel, record.mErrorCode);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+
+package com.microsoft.aad.adal;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Single pass tokenizer for the parameters of WWW-Authenticate style
+ * challenge headers. Keys and values are URL form decoded, trimmed and quotes
+ * are removed from values.
+ */
+final class AuthenticateHeaderParser {
+
+    private static final String TAG = "AuthenticateHeaderParser";
+
+    private AuthenticateHeaderParser() {
+    }
+
+    /**
+     * Parses parameters in key="value" format separated by commas. Keys can
+     * not contain whitespace, comma, equal sign or quote and values can not
+     * be blank.
+     * 
+     * @param header header value
+     * @param start index after the scheme. Scheme should be followed by
+     *            whitespace.
+     * @return parameters or null if header is not in the expected format
+     * @throws UnsupportedEncodingException
+     */
+    static HashMap<String, String> parseQuotedParameters(final String header, final int start)
+            throws UnsupportedEncodingException {
+        final int length = header.length();
+        int i = start;
+        if (i >= length || !isSpace(header.charAt(i))) {
+            return null;
+        }
+
+        i = skipSpaces(header, i);
+
+        // Pairs are decoded after the whole header is accepted
+        ArrayList<String> pairs = new ArrayList<String>();
+        while (true) {
+            int keyStart = i;
+            while (i < length && isKeyChar(header.charAt(i))) {
+                i++;
+            }
+
+            if (i == keyStart || i + 1 >= length || header.charAt(i) != '='
+                    || header.charAt(i + 1) != '"') {
+                return null;
+            }
+
+            int keyEnd = i;
+            int valueStart = i + 2;
+            int valueEnd = header.indexOf('"', valueStart);
+            if (valueEnd < 0 || isBlank(header, valueStart, valueEnd)) {
+                return null;
+            }
+
+            pairs.add(header.substring(keyStart, keyEnd));
+            pairs.add(header.substring(valueStart, valueEnd));
+            i = skipSpaces(header, valueEnd + 1);
+            if (i == length) {
+                break;
+            }
+
+            if (header.charAt(i) != ',') {
+                return null;
+            }
+
+            i = skipSpaces(header, i + 1);
+        }
+
+        HashMap<String, String> items = new HashMap<String, String>();
+        for (int pair = 0; pair < pairs.size(); pair += 2) {
+            put(items, pairs.get(pair), pairs.get(pair + 1), true);
+        }
+
+        return items;
+    }
+
+    /**
+     * Parses parameters in key=value format separated by commas. Delimiters
+     * inside quotes are skipped and blank items are ignored.
+     * 
+     * @param header header value
+     * @param start index after the scheme
+     * @return parameters or null if an item does not have exactly one key and
+     *         one value
+     * @throws UnsupportedEncodingException
+     */
+    static HashMap<String, String> parseParameters(final String header, final int start)
+            throws UnsupportedEncodingException {
+        HashMap<String, String> items = new HashMap<String, String>();
+        final int length = header.length();
+        boolean insideQuote = false;
+        int partStart = start;
+        int parts = 0;
+        boolean blankItem = true;
+        int keyStart = 0;
+        int keyEnd = 0;
+        int valueStart = 0;
+        int valueEnd = 0;
+        for (int i = start; i <= length; i++) {
+            char c = i < length ? header.charAt(i) : ',';
+            if (c > ' ' && (c != ',' || insideQuote)) {
+                blankItem = false;
+            }
+
+            if (c == '"') {
+                insideQuote = !insideQuote;
+                continue;
+            }
+
+            if (insideQuote && i < length || c != '=' && c != ',') {
+                continue;
+            }
+
+            if (!isBlank(header, partStart, i)) {
+                parts++;
+                if (parts == 1) {
+                    keyStart = partStart;
+                    keyEnd = i;
+                } else if (parts == 2) {
+                    valueStart = partStart;
+                    valueEnd = i;
+                }
+            }
+
+            partStart = i + 1;
+            if (c == ',') {
+                if (parts == 2) {
+                    put(items, header.substring(keyStart, keyEnd),
+                            header.substring(valueStart, valueEnd), false);
+                } else if (!blankItem) {
+                    return null;
+                }
+
+                parts = 0;
+                blankItem = true;
+            }
+        }
+
+        return items;
+    }
+
+    private static void put(final HashMap<String, String> items, final String rawKey,
+            final String rawValue, final boolean warnRedundant) throws UnsupportedEncodingException {
+        String key = decode(rawKey).trim();
+        String value = StringExtensions.removeQuoteInHeaderValue(decode(rawValue).trim());
+        if (warnRedundant && items.containsKey(key)) {
+            Logger.w(TAG, String.format("Key/value pair list contains redundant key '%s'.", key),
+                    "", ADALError.DEVELOPER_BEARER_HEADER_MULTIPLE_ITEMS);
+        }
+
+        items.put(key, value);
+    }
+
+    /**
+     * Decodes only if value has an escaped character.
+     */
+    private static String decode(final String value) throws UnsupportedEncodingException {
+        if (value.indexOf('%') < 0 && value.indexOf('+') < 0) {
+            return value;
+        }
+
+        return StringExtensions.URLFormDecode(value);
+    }
+
+    private static int skipSpaces(final String header, int index) {
+        while (index < header.length() && isSpace(header.charAt(index))) {
+            index++;
+        }
+
+        return index;
+    }
+
+    /**
+     * Same check as {@link String#trim()} on the range.
+     */
+    private static boolean isBlank(final String header, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (header.charAt(i) > ' ') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Same characters as \s in regular expressions.
+     */
+    private static boolean isSpace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isKeyChar(final char c) {
+        return c != ',' && c != '=' && c != '"' && !isSpace(c);
+    }
+}
@@ -21,21 +21,27 @@ package com.microsoft.aad.adal;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.NoSuchPaddingException;
 
 import com.microsoft.aad.adal.AuthenticationRequest.UserIdentifierType;
+import com.microsoft.aad.adal.Logger.LogLevel;
 
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
@@ -67,7 +73,7 @@ public class AuthenticationContext {
 
     private boolean mValidateAuthority;
 
-    private boolean mAuthorityValidated = false;
+    private volatile boolean mAuthorityValidated = false;
 
     private ITokenCacheStore mTokenCacheStore;
 
@@ -77,6 +83,13 @@ public class AuthenticationContext {
 
     private static final Lock WRITE_LOCK = RWL.writeLock();
 
+    /**
+     * Refresh token requests in progress keyed by the cache key of the
+     * refresh token and the requested resource. Concurrent requests for the
+     * same key wait for the same response instead of sending another request.
+     */
+    private static final ConcurrentHashMap<String, InFlightRefresh> IN_FLIGHT_REFRESH_REQUESTS = new ConcurrentHashMap<String, InFlightRefresh>();
+
     /**
      * Delegate map is needed to handle activity recreate without asking
      * developer to handle context instance for config changes.
@@ -86,13 +99,13 @@ public class AuthenticationContext {
     /**
      * Last set authorization callback.
      */
-    private AuthenticationCallback<AuthenticationResult> mAuthorizationCallback;
+    private volatile AuthenticationCallback<AuthenticationResult> mAuthorizationCallback;
 
     /**
      * Instance validation related calls are serviced inside Discovery as a
      * module.
      */
-    private IDiscovery mDiscovery = new Discovery();
+    private IDiscovery mDiscovery;
 
     /**
      * Web request handler interface to test behaviors.
@@ -181,6 +194,7 @@ public class AuthenticationContext {
             throw new UnsupportedOperationException("Local cache is not supported for broker usage");
         }
         mContext = appContext;
+        mDiscovery = new Discovery(appContext);
         mConnectionService = new DefaultConnectionService(mContext);
         checkInternetPermission();
         mAuthority = extractAuthority(authority);
@@ -641,6 +655,168 @@ public class AuthenticationContext {
         return acquireTokenLocal(null, false, request, callback);
     }
 
+    /**
+     * Prepares the context for the token requests that app is going to make.
+     * It loads the encryption keys of the default cache, validates the
+     * authority and then connects to the authority host off the calling
+     * thread. Cached tokens for the resources are read ahead only if the
+     * in-memory tier of the default cache is enabled. Prewarm shares the
+     * request executor, so token requests started meanwhile may wait for its
+     * steps. Failed steps are logged and token requests run them again.
+     * 
+     * @param clientId required client identifier.
+     * @param userId UserId obtained from {@link UserInfo} inside
+     *            {@link AuthenticationResult}. Null to read tokens without
+     *            user.
+     * @param resources resource identifiers to read from cache.
+     * @return A {@link Future} that is done when all steps are finished.
+     */
+    public Future<Void> prewarm(final String clientId, final String userId,
+            final String... resources) {
+        if (StringExtensions.IsNullOrBlank(clientId)) {
+            throw new IllegalArgumentException("clientId");
+        }
+
+        Logger.v(TAG, "Prewarm is started");
+        final RequestExecutor executor = RequestExecutor.getInstance();
+        final ArrayList<Future<?>> steps = new ArrayList<Future<?>>();
+        steps.add(executor.submitLocal(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (mTokenCacheStore instanceof DefaultTokenCacheStore) {
+                    DefaultTokenCacheStore cache = (DefaultTokenCacheStore)mTokenCacheStore;
+                    cache.loadKeys();
+
+                    // Decrypted items are not kept without the memory tier
+                    if (cache.isMemoryTierEnabled()) {
+                        readAheadCache(clientId, userId, resources);
+                    }
+                }
+
+                return null;
+            }
+        }));
+
+        final URL authorityUrl = StringExtensions.getUrl(mAuthority);
+        if (authorityUrl != null) {
+            // One network step, so it takes one slot of the authority limit
+            steps.add(executor.submit(mAuthority, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        if (mValidateAuthority && !mAuthorityValidated) {
+                            if (!validateAuthority(authorityUrl)) {
+                                Logger.w(TAG, "Prewarm could not validate the authority", "",
+                                        ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED);
+                                return null;
+                            }
+
+                            mAuthorityValidated = true;
+                        }
+
+                        HttpWebRequest.warmUp(authorityUrl);
+                    } catch (RuntimeException e) {
+                        Logger.e(TAG, "Prewarm network step failed", "",
+                                ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED, e);
+                        throw e;
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        return new PrewarmFuture(steps);
+    }
+
+    private void readAheadCache(final String clientId, final String userId,
+            final String[] resources) {
+        if (mTokenCacheStore == null || resources == null) {
+            return;
+        }
+
+        for (String resource : resources) {
+            if (StringExtensions.IsNullOrBlank(resource)) {
+                continue;
+            }
+
+            try {
+                mTokenCacheStore.getItem(CacheKey.createCacheKey(mAuthority, resource, clientId,
+                        false, userId));
+                mTokenCacheStore.getItem(CacheKey.createCacheKey(mAuthority, resource, clientId,
+                        true, userId));
+            } catch (Exception e) {
+                Logger.e(TAG, "Failed to read cache for prewarm", "",
+                        ADALError.DEVICE_CACHE_IS_NOT_WORKING, e);
+            }
+        }
+    }
+
+    /**
+     * Future that is done when all prewarm steps are done.
+     */
+    private static final class PrewarmFuture implements Future<Void> {
+        private final List<Future<?>> mSteps;
+
+        PrewarmFuture(final List<Future<?>> steps) {
+            mSteps = steps;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (Future<?> step : mSteps) {
+                cancelled |= step.cancel(mayInterruptIfRunning);
+            }
+
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<?> step : mSteps) {
+                if (step.isCancelled()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<?> step : mSteps) {
+                if (!step.isDone()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            for (Future<?> step : mSteps) {
+                step.get();
+            }
+
+            Logger.v(TAG, "Prewarm is finished");
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Future<?> step : mSteps) {
+                step.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+
+            Logger.v(TAG, "Prewarm is finished");
+            return null;
+        }
+    }
+
     /**
      * acquire token using refresh token if cache is not used. Otherwise, use
      * acquireToken to let the ADAL handle the cache lookup and refresh token
@@ -779,10 +955,10 @@ public class AuthenticationContext {
                         // immediately to
                         // UI thread. All UI
                         // related actions will be performed using the Handler.
-                        sThreadExecutor.submit(new Runnable() {
+                        RequestExecutor.getInstance().submit(mAuthority, new Callable<Void>() {
 
                             @Override
-                            public void run() {
+                            public Void call() {
                                 Logger.v(
                                         TAG,
                                         "Processing url for token. "
@@ -809,7 +985,7 @@ public class AuthenticationContext {
                                             new AuthenticationException(
                                                     ADALError.AUTHORIZATION_CODE_NOT_EXCHANGED_FOR_TOKEN,
                                                     msg, exc));
-                                    return;
+                                    return null;
                                 }
 
                                 try {
@@ -836,6 +1012,8 @@ public class AuthenticationContext {
                                 } finally {
                                     removeWaitingRequest(requestId);
                                 }
+
+                                return null;
                             }
                         });
                     }
@@ -1009,11 +1187,6 @@ public class AuthenticationContext {
         return cancelResult;
     }
 
-    /**
-     * Singled threaded Executor for async work.
-     */
-    private static ExecutorService sThreadExecutor = Executors.newSingleThreadExecutor();
-
     private Handler mHandler;
 
     class CallbackHandler {
@@ -1064,14 +1237,153 @@ public class AuthenticationContext {
         // related actions will be performed using Handler.
         Logger.setCorrelationId(getRequestCorrelationId());
         Logger.v(TAG, "Sending async task from thread:" + android.os.Process.myTid());
-        return sThreadExecutor.submit(new Callable<AuthenticationResult>() {
+        return RequestExecutor.getInstance().submit(mAuthority,
+                new Callable<AuthenticationResult>() {
 
-            @Override
-            public AuthenticationResult call() {
-                Logger.v(TAG, "Running task in thread:" + android.os.Process.myTid());
-                return acquireTokenLocalCall(callbackHandle, activity, useDialog, request);
+                    @Override
+                    public AuthenticationResult call() {
+                        AuthenticationResult result = acquireTokenFromCacheOnly(callbackHandle,
+                                request);
+                        scheduleBackgroundRefresh(request, result);
+                        return result;
+                    }
+                }, new Callable<AuthenticationResult>() {
+
+                    @Override
+                    public AuthenticationResult call() {
+                        Logger.v(TAG, "Running task in thread:" + android.os.Process.myTid());
+                        AuthenticationResult result = acquireTokenLocalCall(callbackHandle,
+                                activity, useDialog, request);
+                        scheduleBackgroundRefresh(request, result);
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Schedules background refresh for the token returned to the caller if it
+     * is enabled in {@link AuthenticationSettings}. Broker results do not
+     * have refresh token and are not scheduled.
+     * 
+     * @param request
+     * @param result
+     */
+    private void scheduleBackgroundRefresh(final AuthenticationRequest request,
+            final AuthenticationResult result) {
+        if (AuthenticationSettings.INSTANCE.getBackgroundRefreshWindow() <= 0
+                || mTokenCacheStore == null || result == null
+                || StringExtensions.IsNullOrBlank(result.getAccessToken())
+                || StringExtensions.IsNullOrBlank(result.getRefreshToken())) {
+            return;
+        }
+
+        String userId = request.getUserId();
+        if (result.getUserInfo() != null
+                && !StringExtensions.IsNullOrBlank(result.getUserInfo().getUserId())) {
+            userId = result.getUserInfo().getUserId();
+        } else if (StringExtensions.IsNullOrBlank(userId)) {
+            userId = request.getLoginHint();
+        }
+
+        final AuthenticationRequest refreshRequest = new AuthenticationRequest(mAuthority,
+                request.getResource(), request.getClientId(), userId, getRequestCorrelationId());
+        refreshRequest.setSilent(true);
+        refreshRequest.setPrompt(PromptBehavior.Auto);
+        refreshRequest.setUserIdentifierType(UserIdentifierType.UniqueId);
+        TokenRefreshScheduler.getInstance().schedule(
+                CacheKey.createCacheKey(refreshRequest, userId), result.getExpiresOn(),
+                new BackgroundRefresh(this, refreshRequest));
+    }
+
+    /**
+     * Scheduled refresh that does not keep the context alive. Context holds
+     * the caller's {@link Context}, which is usually an Activity.
+     */
+    private static final class BackgroundRefresh implements Runnable {
+        private final WeakReference<AuthenticationContext> mContext;
+
+        private final AuthenticationRequest mRequest;
+
+        BackgroundRefresh(final AuthenticationContext context,
+                final AuthenticationRequest request) {
+            mContext = new WeakReference<AuthenticationContext>(context);
+            mRequest = request;
+        }
+
+        @Override
+        public void run() {
+            final AuthenticationContext context = mContext.get();
+            if (context == null) {
+                Logger.v(TAG, "Background refresh is skipped. Context is not used anymore. "
+                        + mRequest.getLogInfo());
+                return;
             }
-        });
+
+            RequestExecutor.getInstance().submit(context.mAuthority,
+                    new Callable<AuthenticationResult>() {
+                        @Override
+                        public AuthenticationResult call() {
+                            return context.refreshInBackground(mRequest);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Refreshes the token with the refresh token from cache. Errors are
+     * logged since there is not any caller to report them.
+     * 
+     * @param request silent request for the token
+     * @return refreshed result or null
+     */
+    private AuthenticationResult refreshInBackground(final AuthenticationRequest request) {
+        Logger.v(TAG, "Background refresh started. " + request.getLogInfo());
+        try {
+            RefreshItem refreshItem = getRefreshToken(request);
+            if (refreshItem == null || StringExtensions.IsNullOrBlank(refreshItem.mRefreshToken)) {
+                Logger.v(TAG, "Refresh token is not available for background refresh");
+                return null;
+            }
+
+            return refreshToken(new CallbackHandler(null, null), null, false, request,
+                    refreshItem, true);
+        } catch (AuthenticationException exc) {
+            Logger.w(TAG, "Background refresh failed. " + request.getLogInfo(),
+                    exc.getMessage(), exc.getCode());
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns valid token from cache without network calls or UI. It returns
+     * null if authority needs validation, broker is used, prompt is requested
+     * or cache does not have a valid token for the request.
+     * 
+     * @param callbackHandle
+     * @param request
+     * @return AuthenticationResult from cache or null
+     */
+    private AuthenticationResult acquireTokenFromCacheOnly(final CallbackHandler callbackHandle,
+            final AuthenticationRequest request) {
+        if ((mValidateAuthority && !mAuthorityValidated) || promptUser(request.getPrompt())
+                || StringExtensions.getUrl(mAuthority) == null
+                || mBrokerProxy.canSwitchToBroker()) {
+            return null;
+        }
+
+        AuthenticationResult cachedItem = getItemFromCache(request);
+        if (cachedItem == null || isUserMisMatch(request, cachedItem)
+                || !isValidCache(cachedItem)) {
+            return null;
+        }
+
+        Logger.v(TAG, "Token is returned from cache without waiting for network requests");
+        AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.CACHE_HIT);
+        if (callbackHandle.callback != null) {
+            callbackHandle.onSuccess(cachedItem);
+        }
+        return cachedItem;
     }
 
     /**
@@ -1140,6 +1452,11 @@ public class AuthenticationContext {
             request.setVersion(getVersionName());
             request.setBrokerAccountName(request.getLoginHint());
             
+            // Forced prompt may return a different token for the same account
+            if (promptUser(request.getPrompt())) {
+                mBrokerProxy.clearResultCache();
+            }
+
             // Don't send background request, if prompt flag is always or
             // refresh_session
             if (!promptUser(request.getPrompt())
@@ -1181,6 +1498,7 @@ public class AuthenticationContext {
 
                 // Only happens with callback since silent call does not show UI
                 Logger.v(TAG, "Launch activity for Authenticator");
+                AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.PROMPT);
                 mAuthorizationCallback = callbackHandle.callback;
                 request.setRequestId(callbackHandle.callback.hashCode());
                 Logger.v(TAG, "Starting Authentication Activity with callback:"
@@ -1247,12 +1565,14 @@ public class AuthenticationContext {
 
         if (!promptUser(request.getPrompt()) && isValidCache(cachedItem)) {
             Logger.v(TAG, "Token is returned from cache");
+            AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.CACHE_HIT);
             if (callbackHandle.callback != null) {
                 callbackHandle.onSuccess(cachedItem);
             }
             return cachedItem;
         }
 
+        AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.CACHE_MISS);
         Logger.v(TAG, "Checking refresh tokens");
         RefreshItem refreshItem = getRefreshToken(request);
         if (!promptUser(request.getPrompt()) && refreshItem != null
@@ -1267,6 +1587,7 @@ public class AuthenticationContext {
                 // delegate map is used to remember callback if another
                 // instance of authenticationContext is created for config
                 // change or similar at client app.
+                AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.PROMPT);
                 mAuthorizationCallback = callbackHandle.callback;
                 request.setRequestId(callbackHandle.callback.hashCode());
                 Logger.v(TAG, "Starting Authentication Activity with callback:"
@@ -1338,9 +1659,11 @@ public class AuthenticationContext {
             }
 
             if (item != null) {
-                Logger.v(TAG,
-                        "getItemFromCache accessTokenId:" + getTokenHash(item.getAccessToken())
-                                + " refreshTokenId:" + getTokenHash(item.getRefreshToken()));
+                if (Logger.getInstance().isLoggable(LogLevel.Verbose)) {
+                    Logger.v(TAG, "getItemFromCache accessTokenId:%s refreshTokenId:%s",
+                            getTokenHash(item.getAccessToken()),
+                            getTokenHash(item.getRefreshToken()));
+                }
                 return AuthenticationResult.createResult(item);
             }
         }
@@ -1431,10 +1754,10 @@ public class AuthenticationContext {
             }
 
             if (item != null && !StringExtensions.IsNullOrBlank(item.getRefreshToken())) {
-                String refreshTokenHash = getTokenHash(item.getRefreshToken());
-
-                Logger.v(TAG, "Refresh token is available and id:" + refreshTokenHash
-                        + " Key used:" + keyUsed);
+                if (Logger.getInstance().isLoggable(LogLevel.Verbose)) {
+                    Logger.v(TAG, "Refresh token is available and id:%s Key used:%s",
+                            getTokenHash(item.getRefreshToken()), keyUsed);
+                }
                 refreshItem = new RefreshItem(keyUsed, request, item, multiResource);
             }
         }
@@ -1503,7 +1826,8 @@ public class AuthenticationContext {
      */
     private void logReturnedToken(final AuthenticationRequest request,
             final AuthenticationResult result) {
-        if (result != null && result.getAccessToken() != null) {
+        if (result != null && result.getAccessToken() != null
+                && Logger.getInstance().isLoggable(LogLevel.Verbose)) {
             String accessTokenHash = getTokenHash(result.getAccessToken());
             String refreshTokenHash = getTokenHash(result.getRefreshToken());
             Logger.v(TAG, String.format(
@@ -1532,13 +1856,26 @@ public class AuthenticationContext {
     private void removeItemFromCache(final RefreshItem refreshItem) throws AuthenticationException {
         if (mTokenCacheStore != null) {
             Logger.v(TAG, "Remove refresh item from cache:" + refreshItem.mKey);
-            mTokenCacheStore.removeItem(refreshItem.mKey);
+            removeItemFromCache(refreshItem.mKey, refreshItem.mRefreshToken);
             // clean up keys related to userid/displayableid for same request
-            mTokenCacheStore.removeItem(refreshItem.mKeyWithUserId);
-            mTokenCacheStore.removeItem(refreshItem.mKeyWithDisplayableId);
+            removeItemFromCache(refreshItem.mKeyWithUserId, refreshItem.mRefreshToken);
+            removeItemFromCache(refreshItem.mKeyWithDisplayableId, refreshItem.mRefreshToken);
         }
     }
 
+    private void removeItemFromCache(final String key, final String refreshToken) {
+        if (key != null && mTokenCacheStore instanceof MemoryTokenCacheStore) {
+            // Another request may have stored a new refresh token meanwhile
+            if (!((MemoryTokenCacheStore)mTokenCacheStore).removeItemIfRefreshToken(key,
+                    refreshToken)) {
+                Logger.v(TAG, "Item is updated by another request. It is not removed.");
+            }
+            return;
+        }
+
+        mTokenCacheStore.removeItem(key);
+    }
+
     /**
      * refresh token if possible. if it fails, it calls acquire token after
      * removing refresh token from cache.
@@ -1559,8 +1896,10 @@ public class AuthenticationContext {
             final AuthenticationRequest request, final RefreshItem refreshItem,
             final boolean useCache) {
 
-        Logger.v(TAG, "Process refreshToken for " + request.getLogInfo() + " refreshTokenId:"
-                + getTokenHash(refreshItem.mRefreshToken));
+        if (Logger.getInstance().isLoggable(LogLevel.Verbose)) {
+            Logger.v(TAG, "Process refreshToken for %s refreshTokenId:%s", request.getLogInfo(),
+                    getTokenHash(refreshItem.mRefreshToken));
+        }
 
         // Removes refresh token from cache, when this call is complete. Request
         // may be interrupted, if app is shutdown by user. Detect connection
@@ -1576,13 +1915,16 @@ public class AuthenticationContext {
             return null;
         }
 
+        AuthenticationMetrics.getInstance().increment(AuthenticationMetrics.Counter.REFRESH);
         AuthenticationResult result = null;
+        final InFlightRefresh inFlight;
         try {
-            Oauth2 oauthRequest = new Oauth2(request, mWebRequest, mJWSBuilder);
-            result = oauthRequest.refreshToken(refreshItem.mRefreshToken);
-            if (result != null && StringExtensions.IsNullOrBlank(result.getRefreshToken())) {
-                Logger.v(TAG, "Refresh token is not returned or empty");
-                result.setRefreshToken(refreshItem.mRefreshToken);
+            if (useCache && refreshItem.mKey != null) {
+                inFlight = joinRefreshRequest(request, refreshItem);
+                result = inFlight.getResult();
+            } else {
+                inFlight = null;
+                result = sendRefreshRequest(request, refreshItem.mRefreshToken);
             }
         } catch (Exception exc) {
             // Server side error or similar
@@ -1618,9 +1960,16 @@ public class AuthenticationContext {
 
                 // it replaces multi resource refresh token as
                 // well with the new one since it is not stored
-                // with resource.
-                Logger.v(TAG, "Cache is used. It will set item to cache" + request.getLogInfo());
-                setItemToCacheFromRefresh(refreshItem, request, result);
+                // with resource. Only the request that sent the refresh
+                // token writes the result to the cache.
+                if (inFlight == null || inFlight.mOwner == Thread.currentThread()) {
+                    Logger.v(TAG, "Cache is used. It will set item to cache"
+                            + request.getLogInfo());
+                    setItemToCacheFromRefresh(refreshItem, request, result);
+                } else {
+                    Logger.v(TAG, "Result is shared from another refresh token request"
+                            + request.getLogInfo());
+                }
 
                 // return result obj which has error code and
                 // error description that is returned from
@@ -1644,6 +1993,86 @@ public class AuthenticationContext {
         }
     }
 
+    private AuthenticationResult sendRefreshRequest(final AuthenticationRequest request,
+            final String refreshToken) throws Exception {
+        Oauth2 oauthRequest = new Oauth2(request, mWebRequest, mJWSBuilder);
+        AuthenticationResult result = oauthRequest.refreshToken(refreshToken);
+        if (result != null && StringExtensions.IsNullOrBlank(result.getRefreshToken())) {
+            Logger.v(TAG, "Refresh token is not returned or empty");
+            result.setRefreshToken(refreshToken);
+        }
+
+        return result;
+    }
+
+    /**
+     * Refresh token request that other requests for the same cache key can
+     * wait for.
+     */
+    private static final class InFlightRefresh {
+        private final String mRefreshToken;
+
+        private final FutureTask<AuthenticationResult> mTask;
+
+        private final Thread mOwner;
+
+        InFlightRefresh(String refreshToken, Callable<AuthenticationResult> call) {
+            mRefreshToken = refreshToken;
+            mTask = new FutureTask<AuthenticationResult>(call);
+            mOwner = Thread.currentThread();
+        }
+
+        AuthenticationResult getResult() throws Exception {
+            try {
+                return mTask.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception)e.getCause();
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends the refresh token request or attaches to the one in progress for
+     * the same cache key, resource and refresh token. Multi resource refresh
+     * token key does not have the resource, so it is added to the key.
+     */
+    private InFlightRefresh joinRefreshRequest(final AuthenticationRequest request,
+            final RefreshItem refreshItem) {
+        final String inFlightKey = refreshItem.mKey + "$" + request.getResource();
+        final InFlightRefresh inFlight = new InFlightRefresh(refreshItem.mRefreshToken,
+                new Callable<AuthenticationResult>() {
+                    @Override
+                    public AuthenticationResult call() throws Exception {
+                        return sendRefreshRequest(request, refreshItem.mRefreshToken);
+                    }
+                });
+
+        InFlightRefresh existing = IN_FLIGHT_REFRESH_REQUESTS.putIfAbsent(inFlightKey, inFlight);
+        if (existing != null && existing.mRefreshToken.equals(refreshItem.mRefreshToken)) {
+            Logger.v(TAG, "Waiting for refresh token request in progress for the same key. "
+                    + request.getLogInfo());
+            return existing;
+        }
+
+        if (existing == null) {
+            try {
+                inFlight.mTask.run();
+            } finally {
+                IN_FLIGHT_REFRESH_REQUESTS.remove(inFlightKey, inFlight);
+            }
+        } else {
+            // Request in progress uses another refresh token. It is sent
+            // without sharing.
+            inFlight.mTask.run();
+        }
+
+        return inFlight;
+    }
+
     private boolean validateAuthority(final URL authorityUrl) {
 
         // This is not calling outer callback. It is using
@@ -1787,15 +2216,15 @@ public class AuthenticationContext {
 
         // Execute all the calls inside Runnable to return immediately. All UI
         // related actions will be performed using Handler.
-        sThreadExecutor.submit(new Runnable() {
+        RequestExecutor.getInstance().submit(mAuthority, new Callable<Void>() {
             @Override
-            public void run() {
+            public Void call() {
                 final URL authorityUrl = StringExtensions.getUrl(mAuthority);
                 if (authorityUrl == null) {
                     callbackHandle.onError(new AuthenticationException(
                             ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_URL));
 
-                    return;
+                    return null;
                 }
 
                 final AuthenticationRequest request = new AuthenticationRequest(mAuthority,
@@ -1819,7 +2248,7 @@ public class AuthenticationContext {
                                             + authorityUrl.toString());
                             callbackHandle.onError(new AuthenticationException(
                                     ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_INSTANCE));
-                            return;
+                            return null;
                         }
                     } catch (Exception exc) {
                         Logger.e(TAG, "Authority validation is failed",
@@ -1829,13 +2258,14 @@ public class AuthenticationContext {
                                 .onError(new AuthenticationException(
                                         ADALError.SERVER_INVALID_REQUEST,
                                         "Authority validation is failed"));
-                        return;
+                        return null;
                     }
                 }
 
                 // Follow refresh logic now. Authority is valid or
                 // skipped validation
                 refreshToken(callbackHandle, null, false, request, refreshItem, false);
+                return null;
             }
         });
     }
@@ -0,0 +1,228 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for the requests made by the library. Use
+ * the getters to pull the aggregated values or set a listener to receive each
+ * completed request. Usage:
+ * AuthenticationMetrics.getInstance().setListener(..);
+ */
+public final class AuthenticationMetrics {
+
+    private static final String TAG = "AuthenticationMetrics";
+
+    /**
+     * Token endpoint requests.
+     */
+    public static final String ENDPOINT_TOKEN = "token";
+
+    /**
+     * Instance discovery requests.
+     */
+    public static final String ENDPOINT_INSTANCE_DISCOVERY = "instance";
+
+    /**
+     * Background token requests to the broker.
+     */
+    public static final String ENDPOINT_BROKER = "broker";
+
+    /**
+     * Upper bounds of the latency buckets in milliseconds. Last bucket has
+     * the requests that take longer.
+     */
+    private static final long[] BUCKET_BOUNDS_MILLIS = new long[] {
+            50, 100, 250, 500, 1000, 2500, 5000, 10000
+    };
+
+    private static AuthenticationMetrics sInstance = new AuthenticationMetrics();
+
+    /**
+     * Token request outcomes.
+     */
+    public enum Counter {
+        /**
+         * Valid token is returned from cache.
+         */
+        CACHE_HIT,
+        /**
+         * Cache does not have a valid access token.
+         */
+        CACHE_MISS,
+        /**
+         * Refresh token is used.
+         */
+        REFRESH,
+        /**
+         * User is prompted.
+         */
+        PROMPT
+    }
+
+    /**
+     * Receives each completed request. It is called on the thread that sent
+     * the request, so it should return quickly.
+     */
+    public interface IMetricsListener {
+        void onRequestCompleted(String endpointType, long latencyNanos, UUID correlationId,
+                String error);
+    }
+
+    /**
+     * Histogram and totals for one endpoint type.
+     */
+    private static final class EndpointStats {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(
+                BUCKET_BOUNDS_MILLIS.length + 1);
+
+        private final AtomicLong mCount = new AtomicLong();
+
+        private final AtomicLong mTotalNanos = new AtomicLong();
+    }
+
+    private final ConcurrentHashMap<String, EndpointStats> mEndpointStats = new ConcurrentHashMap<String, EndpointStats>();
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+
+    private volatile IMetricsListener mListener = null;
+
+    AuthenticationMetrics() {
+    }
+
+    /**
+     * @return metrics of the process
+     */
+    public static AuthenticationMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets listener for completed requests.
+     * 
+     * @param listener listener or null to remove it
+     */
+    public void setListener(IMetricsListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Gets upper bounds of the histogram buckets.
+     * 
+     * @return bounds in milliseconds. Histograms have one more bucket for
+     *         longer requests.
+     */
+    public static long[] getLatencyBucketBounds() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * Gets latency histogram for the endpoint type.
+     * 
+     * @param endpointType one of the ENDPOINT constants
+     * @return number of requests in each bucket
+     */
+    public long[] getLatencyHistogram(String endpointType) {
+        long[] histogram = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+        EndpointStats stats = mEndpointStats.get(endpointType);
+        if (stats != null) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = stats.mBuckets.get(i);
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @param endpointType one of the ENDPOINT constants
+     * @return number of completed requests
+     */
+    public long getRequestCount(String endpointType) {
+        EndpointStats stats = mEndpointStats.get(endpointType);
+        return stats != null ? stats.mCount.get() : 0;
+    }
+
+    /**
+     * @param endpointType one of the ENDPOINT constants
+     * @return sum of request latencies in nanoseconds
+     */
+    public long getTotalLatencyNanos(String endpointType) {
+        EndpointStats stats = mEndpointStats.get(endpointType);
+        return stats != null ? stats.mTotalNanos.get() : 0;
+    }
+
+    /**
+     * @param counter token request outcome
+     * @return number of outcomes
+     */
+    public long getCount(Counter counter) {
+        return mCounters.get(counter.ordinal());
+    }
+
+    /**
+     * Clears histograms and counters.
+     */
+    public void reset() {
+        mEndpointStats.clear();
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+    }
+
+    void increment(Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    void recordRequest(String endpointType, long latencyNanos, UUID correlationId, String error) {
+        EndpointStats stats = mEndpointStats.get(endpointType);
+        if (stats == null) {
+            EndpointStats newStats = new EndpointStats();
+            stats = mEndpointStats.putIfAbsent(endpointType, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length
+                && latencyMillis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+
+        stats.mBuckets.incrementAndGet(bucket);
+        stats.mCount.incrementAndGet();
+        stats.mTotalNanos.addAndGet(latencyNanos);
+
+        IMetricsListener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onRequestCompleted(endpointType, latencyNanos, correlationId, error);
+            } catch (Exception e) {
+                Logger.w(TAG, "Metrics listener failed", e.getMessage(), null);
+            }
+        }
+    }
+}
@@ -21,15 +21,25 @@ package com.microsoft.aad.adal;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.Activity;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
 
 /**
@@ -80,10 +90,29 @@ public class AuthenticationParameters {
 
     private static final String TAG = "AuthenticationParameters";
 
+    private static final String BEARER_SCHEME = "Bearer";
+
     private static final String REGEX = "^Bearer\\s+([^,\\s=\"]+?)=\"([^\"]*?)\"\\s*(?:,\\s*([^,\\s=\"]+?)=\"([^\"]*?)\"\\s*)*$";
 
     private static final String REGEX_VALUES = "\\s*([^,\\s=\"]+?)=\"([^\"]*?)\"";
 
+    private static final Pattern HEADER_PATTERN = Pattern.compile(REGEX);
+
+    private static final Pattern VALUES_PATTERN = Pattern.compile(REGEX_VALUES);
+
+    private static final String PARAMETERS_CACHE_NAME = "com.microsoft.aad.adal.parameters";
+
+    private static final String EXPIRES_ON = "expires_on";
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /**
+     * Parameters by resource host. Entries are used until they expire.
+     */
+    private static final ConcurrentHashMap<String, ParametersCacheEntry> sParametersCache = new ConcurrentHashMap<String, ParametersCacheEntry>();
+
+    private static boolean sParametersCacheLoaded = false;
+
     private String mAuthority;
 
     private String mResource;
@@ -98,6 +127,66 @@ public class AuthenticationParameters {
      */
     private static ExecutorService sThreadExecutor = Executors.newSingleThreadExecutor();
 
+    /**
+     * Authority and resource returned for a resource host.
+     */
+    private static final class ParametersCacheEntry {
+        private final String mAuthority;
+
+        private final String mResource;
+
+        private final long mExpiresOn;
+
+        ParametersCacheEntry(final String authority, final String resource, final long expiresOn) {
+            mAuthority = authority;
+            mResource = resource;
+            mExpiresOn = expiresOn;
+        }
+
+        boolean isExpired() {
+            return mExpiresOn <= System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Results of {@link AuthenticationParameters#createFromResourceUrls}.
+     * Callback is posted after the last url is completed.
+     */
+    private static final class BatchRequest {
+        private final AuthenticationParameters[] mParams;
+
+        private final Exception[] mExceptions;
+
+        private final AtomicInteger mRemaining;
+
+        private final Handler mHandler;
+
+        private final AuthenticationParamListCallback mCallback;
+
+        BatchRequest(final int size, final Handler handler,
+                final AuthenticationParamListCallback callback) {
+            mParams = new AuthenticationParameters[size];
+            mExceptions = new Exception[size];
+            mRemaining = new AtomicInteger(size);
+            mHandler = handler;
+            mCallback = callback;
+        }
+
+        void onCompleted(final int index, final AuthenticationParameters param,
+                final Exception exception) {
+            mParams[index] = param;
+            mExceptions[index] = exception;
+            if (mRemaining.decrementAndGet() == 0) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onCompleted(Arrays.asList(mParams), Arrays.asList(mExceptions));
+                    }
+                });
+            }
+        }
+    }
+
     /**
      * get authority from the header.
      * 
@@ -139,6 +228,20 @@ public class AuthenticationParameters {
         void onCompleted(Exception exception, AuthenticationParameters param);
     }
 
+    /**
+     * Callback to use for requests with multiple resource urls.
+     */
+    public interface AuthenticationParamListCallback {
+
+        /**
+         * @param params {@link AuthenticationParameters} in the order of the
+         *            resource urls. Null for failed urls.
+         * @param exceptions {@link Exception} in the order of the resource
+         *            urls. Null for successful urls.
+         */
+        void onCompleted(List<AuthenticationParameters> params, List<Exception> exceptions);
+    }
+
     /**
      * ADAL will make the call to get authority and resource info.
      * 
@@ -156,21 +259,18 @@ public class AuthenticationParameters {
         Logger.v(TAG, "createFromResourceUrl");
         final Handler handler = new Handler(context.getMainLooper());
 
+        final Context appContext = context.getApplicationContext();
         sThreadExecutor.submit(new Runnable() {
             @Override
             public void run() {
-                HashMap<String, String> headers = new HashMap<String, String>();
-                headers.put(WebRequestHandler.HEADER_ACCEPT, WebRequestHandler.HEADER_ACCEPT_JSON);
-
                 try {
-                    HttpWebResponse webResponse = sWebRequest.sendGet(resourceUrl, headers);
-
-                    if (webResponse != null) {
-                        try {
-                            onCompleted(null, parseResponse(webResponse));
-                        } catch (IllegalArgumentException exc) {
-                            onCompleted(exc, null);
-                        }
+                    AuthenticationParameters param = getCachedParameters(appContext, resourceUrl);
+                    if (param == null) {
+                        param = queryParameters(appContext, resourceUrl);
+                    }
+
+                    if (param != null) {
+                        onCompleted(null, param);
                     }
                 } catch (Exception exception) {
                     onCompleted(exception, null);
@@ -189,6 +289,69 @@ public class AuthenticationParameters {
         });
     }
 
+    /**
+     * ADAL will query resource urls in parallel to get authority and resource
+     * info. If {@link AuthenticationSettings#setParametersCacheTimeToLive(int)}
+     * is set, results are kept for the scheme, host and port of the resource
+     * url, so that urls at the same host are not queried again until it
+     * passes.
+     * Callback is called once after all urls are completed.
+     * 
+     * @param context {@link Context}
+     * @param resourceUrls Urls for resources to query for 401 response.
+     * @param callback {@link AuthenticationParamListCallback}
+     */
+    public static void createFromResourceUrls(Context context, final List<URL> resourceUrls,
+            final AuthenticationParamListCallback callback) {
+
+        if (callback == null) {
+            throw new IllegalArgumentException("callback");
+        }
+
+        if (resourceUrls == null || resourceUrls.isEmpty()) {
+            throw new IllegalArgumentException("resourceUrls");
+        }
+
+        Logger.v(TAG, "createFromResourceUrls count:" + resourceUrls.size());
+        final Context appContext = context.getApplicationContext();
+        final BatchRequest batch = new BatchRequest(resourceUrls.size(), new Handler(
+                context.getMainLooper()), callback);
+        RequestExecutor executor = RequestExecutor.getInstance();
+        for (int i = 0; i < resourceUrls.size(); i++) {
+            final int index = i;
+            final URL resourceUrl = resourceUrls.get(i);
+            if (resourceUrl == null) {
+                batch.onCompleted(index, null, new IllegalArgumentException("resourceUrl"));
+                continue;
+            }
+
+            executor.submit(getCacheKey(resourceUrl), new Callable<AuthenticationParameters>() {
+                @Override
+                public AuthenticationParameters call() {
+                    AuthenticationParameters param = getCachedParameters(appContext, resourceUrl);
+                    if (param != null) {
+                        batch.onCompleted(index, param, null);
+                    }
+
+                    return param;
+                }
+            }, new Callable<AuthenticationParameters>() {
+                @Override
+                public AuthenticationParameters call() {
+                    AuthenticationParameters param = null;
+                    try {
+                        param = queryParameters(appContext, resourceUrl);
+                        batch.onCompleted(index, param, null);
+                    } catch (Exception exception) {
+                        batch.onCompleted(index, null, exception);
+                    }
+
+                    return param;
+                }
+            });
+        }
+    }
+
     /**
      * ADAL will parse the header response to get the authority and the resource
      * info.
@@ -197,72 +360,233 @@ public class AuthenticationParameters {
      */
     public static AuthenticationParameters createFromResponseAuthenticateHeader(
             String authenticateHeader) {
-        AuthenticationParameters authParams = null;
-
         if (StringExtensions.IsNullOrBlank(authenticateHeader)) {
             throw new IllegalArgumentException(AUTH_HEADER_MISSING);
-        } else {
-            Pattern p = Pattern.compile(REGEX);
-            Matcher m = p.matcher(authenticateHeader);
-
-            // If the header is in the right format, REGEX_VALUES will extract
-            // individual
-            // name-value pairs. This regex is not as exclusive, so it relies on
-            // the previous check to guarantee correctness:
-            if (m.matches()) {
-
-                // Get matching value pairs inside the header value
-                Pattern valuePattern = Pattern.compile(REGEX_VALUES);
-                String headerSubFields = authenticateHeader.substring(BEARER.length());
-                Logger.v(TAG, "Values in here:" + headerSubFields);
-                Matcher values = valuePattern.matcher(headerSubFields);
-                HashMap<String, String> headerItems = new HashMap<String, String>();
-                while (values.find()) {
-
-                    // values.group(0) is matching string
-                    if (!StringExtensions.IsNullOrBlank(values.group(1))
-                            && !StringExtensions.IsNullOrBlank(values.group(2))) {
-                        String key = values.group(1);
-                        String value = values.group(2);
-
-                        try {
-                            key = StringExtensions.URLFormDecode(key);
-                            value = StringExtensions.URLFormDecode(value);
-                        } catch (UnsupportedEncodingException e) {
-                            Logger.v(TAG, e.getMessage());
-                        }
-
-                        key = key.trim();
-                        value = StringExtensions.removeQuoteInHeaderValue(value.trim());
-
-                        if (headerItems.containsKey(key)) {
-                            Logger.w(TAG, String.format(
-                                    "Key/value pair list contains redundant key '{0}'.", key), "",
-                                    ADALError.DEVELOPER_BEARER_HEADER_MULTIPLE_ITEMS);
-                        }
-
-                        headerItems.put(key, value);
-                    } else {
-                        // invalid format
-                        throw new IllegalArgumentException(AUTH_HEADER_INVALID_FORMAT);
-                    }
+        }
+
+        HashMap<String, String> headerItems = null;
+        if (authenticateHeader.startsWith(BEARER_SCHEME)) {
+            try {
+                headerItems = AuthenticateHeaderParser.parseQuotedParameters(authenticateHeader,
+                        BEARER_SCHEME.length());
+            } catch (UnsupportedEncodingException e) {
+                Logger.v(TAG, e.getMessage());
+            }
+        }
+
+        if (headerItems == null) {
+            headerItems = parseWithPatterns(authenticateHeader);
+        }
+
+        String authority = headerItems.get(AUTHORITY_KEY);
+        if (StringExtensions.IsNullOrBlank(authority)) {
+            // invalid format
+            throw new IllegalArgumentException(AUTH_HEADER_MISSING_AUTHORITY);
+        }
+
+        return new AuthenticationParameters(StringExtensions.removeQuoteInHeaderValue(authority),
+                StringExtensions.removeQuoteInHeaderValue(headerItems.get(RESOURCE_KEY)));
+    }
+
+    /**
+     * Parses header with regular expressions if single pass parser does not
+     * accept it.
+     */
+    private static HashMap<String, String> parseWithPatterns(String authenticateHeader) {
+        Matcher m = HEADER_PATTERN.matcher(authenticateHeader);
+
+        // If the header is in the right format, REGEX_VALUES will extract
+        // individual name-value pairs. This regex is not as exclusive, so it
+        // relies on the previous check to guarantee correctness:
+        if (!m.matches()) {
+            throw new IllegalArgumentException(AUTH_HEADER_INVALID_FORMAT);
+        }
+
+        // Get matching value pairs inside the header value
+        String headerSubFields = authenticateHeader.substring(BEARER.length());
+        Logger.v(TAG, "Values in here:" + headerSubFields);
+        Matcher values = VALUES_PATTERN.matcher(headerSubFields);
+        HashMap<String, String> headerItems = new HashMap<String, String>();
+        while (values.find()) {
+
+            // values.group(0) is matching string
+            if (!StringExtensions.IsNullOrBlank(values.group(1))
+                    && !StringExtensions.IsNullOrBlank(values.group(2))) {
+                String key = values.group(1);
+                String value = values.group(2);
+
+                try {
+                    key = StringExtensions.URLFormDecode(key);
+                    value = StringExtensions.URLFormDecode(value);
+                } catch (UnsupportedEncodingException e) {
+                    Logger.v(TAG, e.getMessage());
                 }
 
-                String authority = headerItems.get(AUTHORITY_KEY);
-                if (!StringExtensions.IsNullOrBlank(authority)) {
-                    authParams = new AuthenticationParameters(
-                            StringExtensions.removeQuoteInHeaderValue(authority),
-                            StringExtensions.removeQuoteInHeaderValue(headerItems.get(RESOURCE_KEY)));
-                } else {
-                    // invalid format
-                    throw new IllegalArgumentException(AUTH_HEADER_MISSING_AUTHORITY);
+                key = key.trim();
+                value = StringExtensions.removeQuoteInHeaderValue(value.trim());
+
+                if (headerItems.containsKey(key)) {
+                    Logger.w(TAG, String.format(
+                            "Key/value pair list contains redundant key '%s'.", key), "",
+                            ADALError.DEVELOPER_BEARER_HEADER_MULTIPLE_ITEMS);
                 }
+
+                headerItems.put(key, value);
             } else {
+                // invalid format
                 throw new IllegalArgumentException(AUTH_HEADER_INVALID_FORMAT);
             }
         }
 
-        return authParams;
+        return headerItems;
+    }
+
+    /**
+     * Sends request to the resource url and saves the parameters in the 401
+     * response.
+     * 
+     * @return parameters or null if there is no response
+     */
+    private static AuthenticationParameters queryParameters(final Context context,
+            final URL resourceUrl) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(WebRequestHandler.HEADER_ACCEPT, WebRequestHandler.HEADER_ACCEPT_JSON);
+        HttpWebResponse webResponse = sWebRequest.sendGet(resourceUrl, headers);
+        if (webResponse == null) {
+            return null;
+        }
+
+        AuthenticationParameters param = parseResponse(webResponse);
+        saveToParametersCache(context, resourceUrl, param);
+        return param;
+    }
+
+    /**
+     * Cache key is the scheme, host and port of the resource url.
+     */
+    private static String getCacheKey(final URL resourceUrl) {
+        return resourceUrl.getProtocol().toLowerCase(Locale.US) + "://"
+                + resourceUrl.getHost().toLowerCase(Locale.US) + ":"
+                + (resourceUrl.getPort() == -1 ? resourceUrl.getDefaultPort() : resourceUrl
+                        .getPort());
+    }
+
+    /**
+     * Gets parameters saved for the resource host. Storage errors are logged
+     * and the url is queried in that case.
+     * 
+     * @return parameters or null if they are not in the cache
+     */
+    private static AuthenticationParameters getCachedParameters(final Context context,
+            final URL resourceUrl) {
+        if (AuthenticationSettings.INSTANCE.getParametersCacheTimeToLive() == 0) {
+            return null;
+        }
+
+        try {
+            loadParametersCache(context);
+        } catch (RuntimeException exception) {
+            Logger.e(TAG, "Parameters cache is not available", "",
+                    ADALError.DEVICE_SHARED_PREF_IS_NOT_AVAILABLE, exception);
+        }
+
+        String host = getCacheKey(resourceUrl);
+        ParametersCacheEntry entry = sParametersCache.get(host);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired()) {
+            Logger.v(TAG, "Parameters cache entry is expired for host:" + host);
+            sParametersCache.remove(host, entry);
+            return null;
+        }
+
+        Logger.v(TAG, "Parameters are found in the cache for host:" + host);
+        return new AuthenticationParameters(entry.mAuthority, entry.mResource);
+    }
+
+    private static SharedPreferences getParametersPreferences(final Context context) {
+        if (context == null || AuthenticationSettings.INSTANCE.getParametersCacheTimeToLive() == 0) {
+            return null;
+        }
+
+        return context.getSharedPreferences(PARAMETERS_CACHE_NAME, Activity.MODE_PRIVATE);
+    }
+
+    /**
+     * Loads persisted hosts at the first lookup. Expired hosts are removed
+     * from the storage.
+     */
+    private static void loadParametersCache(final Context context) {
+        synchronized (sParametersCache) {
+            SharedPreferences prefs = getParametersPreferences(context);
+            if (sParametersCacheLoaded || prefs == null) {
+                return;
+            }
+
+            sParametersCacheLoaded = true;
+            SharedPreferences.Editor prefsEditor = prefs.edit();
+            boolean removed = false;
+            for (Map.Entry<String, ?> saved : prefs.getAll().entrySet()) {
+                ParametersCacheEntry entry = null;
+                try {
+                    JSONObject json = new JSONObject(String.valueOf(saved.getValue()));
+                    entry = new ParametersCacheEntry(json.getString(AUTHORITY_KEY), json.optString(
+                            RESOURCE_KEY, null), json.getLong(EXPIRES_ON));
+                } catch (JSONException e) {
+                    Logger.w(TAG, "Parameters cache entry is not valid", "",
+                            ADALError.DEVICE_SHARED_PREF_IS_NOT_AVAILABLE);
+                }
+
+                if (entry == null || entry.isExpired()) {
+                    prefsEditor.remove(saved.getKey());
+                    removed = true;
+                } else {
+                    sParametersCache.putIfAbsent(saved.getKey(), entry);
+                }
+            }
+
+            if (removed) {
+                prefsEditor.apply();
+            }
+
+            Logger.v(TAG, "Parameters cache is loaded. Hosts:" + sParametersCache.size());
+        }
+    }
+
+    private static void saveToParametersCache(final Context context, final URL resourceUrl,
+            final AuthenticationParameters param) {
+        long timeToLive = AuthenticationSettings.INSTANCE.getParametersCacheTimeToLive();
+        if (timeToLive == 0) {
+            return;
+        }
+
+        String host = getCacheKey(resourceUrl);
+        ParametersCacheEntry entry = new ParametersCacheEntry(param.getAuthority(),
+                param.getResource(), System.currentTimeMillis() + timeToLive * MILLIS_PER_SECOND);
+        sParametersCache.put(host, entry);
+
+        try {
+            SharedPreferences prefs = getParametersPreferences(context);
+            if (prefs == null) {
+                return;
+            }
+
+            JSONObject json = new JSONObject();
+            json.put(AUTHORITY_KEY, entry.mAuthority);
+            json.put(RESOURCE_KEY, entry.mResource);
+            json.put(EXPIRES_ON, entry.mExpiresOn);
+            SharedPreferences.Editor prefsEditor = prefs.edit();
+            prefsEditor.putString(host, json.toString());
+            prefsEditor.apply();
+        } catch (JSONException e) {
+            Logger.e(TAG, "Parameters cache entry is not saved", "",
+                    ADALError.DEVICE_SHARED_PREF_IS_NOT_AVAILABLE, e);
+        } catch (RuntimeException e) {
+            Logger.e(TAG, "Parameters cache entry is not saved", "",
+                    ADALError.DEVICE_SHARED_PREF_IS_NOT_AVAILABLE, e);
+        }
     }
 
     private static AuthenticationParameters parseResponse(HttpWebResponse webResponse) {
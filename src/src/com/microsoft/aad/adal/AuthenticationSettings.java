@@ -18,6 +18,8 @@
 
 package com.microsoft.aad.adal;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * Settings to be used in AuthenticationContext.
  */
@@ -55,6 +57,43 @@ public enum AuthenticationSettings {
 
     private int mReadTimeOut = 30000;
 
+    /**
+     * Number of decrypted items kept in memory by {@link DefaultTokenCacheStore}.
+     * Zero disables the in-memory tier.
+     */
+    private int mDefaultCacheMemorySize = 0;
+
+    private boolean mSerialRequestExecution = false;
+
+    private int mMaxConcurrentRequests = 4;
+
+    private int mMaxConcurrentRequestsPerAuthority = 2;
+
+    private ExecutorService mRequestExecutor;
+
+    /**
+     * Background refresh window in seconds.
+     */
+    private int mBackgroundRefreshWindow = 0;
+
+    private boolean mUseHttpKeepAlive = false;
+
+    /**
+     * Time to live of persisted instance discovery results in seconds.
+     */
+    private int mDiscoveryCacheTimeToLive = 24 * 60 * 60;
+
+    /**
+     * Time to live of broker results in memory in seconds. Zero disables it.
+     */
+    private int mBrokerResultCacheTimeToLive = 0;
+
+    /**
+     * Time to live of persisted resource url parameters in seconds. Zero
+     * disables it.
+     */
+    private int mParametersCacheTimeToLive = 0;
+
     /**
      * Get bytes to derive secretKey to use in encrypt/decrypt.
      * 
@@ -116,7 +155,10 @@ public enum AuthenticationSettings {
 
     /**
      * set class for work place join related API. This is only used from
-     * Authenticator side.
+     * Authenticator side. Instance of the class is reused for challenges. It
+     * is created again when its thumbprint changes or its certificate does
+     * not match the challenge, so implementations should return the current
+     * certificate and keys from their methods.
      * 
      * @param <T>
      * @param clazz
@@ -253,4 +295,266 @@ public enum AuthenticationSettings {
 
         this.mReadTimeOut = timeOutMillis;
     }
+
+    /**
+     * Gets the number of decrypted token items that
+     * {@link DefaultTokenCacheStore} keeps in memory.
+     *
+     * @return size of the in-memory tier. Zero if it is disabled.
+     */
+    public int getDefaultCacheMemorySize() {
+        return mDefaultCacheMemorySize;
+    }
+
+    /**
+     * Sets the number of decrypted token items that
+     * {@link DefaultTokenCacheStore} keeps in memory. Repeated lookups for
+     * the same key are answered from memory instead of decrypting the
+     * SharedPreferences entry again. Least recently used items are dropped
+     * when the limit is reached. It applies to stores created after this
+     * call. It is ignored if shared preferences of another package are used,
+     * since changes from that package are not observed. Default value is 0,
+     * which disables the in-memory tier.
+     *
+     * @param size maximum number of items. Non-negative
+     * @throws IllegalArgumentException if size < 0.
+     */
+    public void setDefaultCacheMemorySize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size");
+        }
+
+        this.mDefaultCacheMemorySize = size;
+    }
+
+    /**
+     * Gets the flag for serial request execution.
+     *
+     * @return true if requests run one at a time on a single thread.
+     */
+    public boolean getSerialRequestExecution() {
+        return mSerialRequestExecution;
+    }
+
+    /**
+     * Runs all async requests of {@link AuthenticationContext} one at a time
+     * on a single thread as in earlier versions. Default is false. Cache
+     * lookups then run on a separate thread from network requests. Needs to
+     * be set before the first token request.
+     *
+     * @param serial true to run requests serially
+     */
+    public void setSerialRequestExecution(boolean serial) {
+        mSerialRequestExecution = serial;
+    }
+
+    /**
+     * Gets the maximum number of network requests running in parallel.
+     *
+     * @return maximum number of requests
+     */
+    public int getMaxConcurrentRequests() {
+        return mMaxConcurrentRequests;
+    }
+
+    /**
+     * Sets the number of threads for network bound requests such as refresh
+     * token and authority validation calls. It is not used if an executor is
+     * set with {@link #setRequestExecutor(ExecutorService)}. Default value is
+     * 4. Needs to be set before the first token request.
+     *
+     * @param maxRequests number of threads. Positive
+     * @throws IllegalArgumentException if maxRequests < 1.
+     */
+    public void setMaxConcurrentRequests(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("Invalid maxRequests");
+        }
+
+        mMaxConcurrentRequests = maxRequests;
+    }
+
+    /**
+     * Gets the maximum number of network requests running in parallel for
+     * one authority.
+     *
+     * @return maximum number of requests per authority
+     */
+    public int getMaxConcurrentRequestsPerAuthority() {
+        return mMaxConcurrentRequestsPerAuthority;
+    }
+
+    /**
+     * Sets the maximum number of network requests running in parallel for
+     * one authority. Other requests for the same authority wait until one of
+     * them completes. Default value is 2. Needs to be set before the first
+     * token request.
+     *
+     * @param maxRequests number of requests. Positive
+     * @throws IllegalArgumentException if maxRequests < 1.
+     */
+    public void setMaxConcurrentRequestsPerAuthority(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("Invalid maxRequests");
+        }
+
+        mMaxConcurrentRequestsPerAuthority = maxRequests;
+    }
+
+    /**
+     * Gets the executor provided for network bound requests.
+     *
+     * @return executor or null if ADAL creates its own thread pool
+     */
+    public ExecutorService getRequestExecutor() {
+        return mRequestExecutor;
+    }
+
+    /**
+     * Sets the executor to run network bound requests of
+     * {@link AuthenticationContext}. Limit per authority still applies.
+     * Executor is not used in serial mode. Needs to be set before the first
+     * token request.
+     *
+     * @param executor executor owned by the app. Null to use ADAL thread pool
+     */
+    public void setRequestExecutor(ExecutorService executor) {
+        mRequestExecutor = executor;
+    }
+
+    /**
+     * Gets background refresh window.
+     *
+     * @return window in seconds. Zero if background refresh is disabled.
+     */
+    public int getBackgroundRefreshWindow() {
+        return mBackgroundRefreshWindow;
+    }
+
+    /**
+     * Tokens returned by {@link AuthenticationContext} from the local cache
+     * are refreshed in the background this many seconds before the
+     * expiration buffer marks them as expired. Next silent request then gets
+     * the token from cache without waiting for the network. Each token is
+     * refreshed once after it is returned, so tokens that are not used
+     * anymore are not refreshed. Default value is 0, which disables
+     * background refresh.
+     *
+     * @param windowSeconds window in seconds. Non-negative
+     * @throws IllegalArgumentException if windowSeconds < 0.
+     */
+    public void setBackgroundRefreshWindow(int windowSeconds) {
+        if (windowSeconds < 0) {
+            throw new IllegalArgumentException("Invalid windowSeconds");
+        }
+
+        mBackgroundRefreshWindow = windowSeconds;
+    }
+
+    /**
+     * Gets the flag to reuse HTTP connections.
+     *
+     * @return true if connections are kept alive
+     */
+    public boolean getUseHttpKeepAlive() {
+        return mUseHttpKeepAlive;
+    }
+
+    /**
+     * Keeps HTTP connections to the authority hosts alive, so that token and
+     * discovery requests reuse connections from the pool of the platform
+     * instead of connecting again. If a reused connection turns out to be
+     * closed by the server, GET requests are retried once on a new
+     * connection. Token requests are not retried, since they are not
+     * idempotent. Default is false, which closes the connection after each
+     * request.
+     *
+     * @param keepAlive true to reuse connections
+     */
+    public void setUseHttpKeepAlive(boolean keepAlive) {
+        mUseHttpKeepAlive = keepAlive;
+    }
+
+    /**
+     * Gets the time to live of persisted instance discovery results.
+     *
+     * @return time to live in seconds
+     */
+    public int getDiscoveryCacheTimeToLive() {
+        return mDiscoveryCacheTimeToLive;
+    }
+
+    /**
+     * Validated authority hosts are saved in app private storage with the
+     * tenant discovery endpoint, so that authority validation does not query
+     * the instance discovery endpoint again after the app restarts. Saved
+     * results are used for this many seconds. Default is one day. Zero
+     * disables the persisted cache.
+     *
+     * @param timeToLiveSeconds time to live in seconds. Non-negative
+     * @throws IllegalArgumentException if timeToLiveSeconds < 0.
+     */
+    public void setDiscoveryCacheTimeToLive(int timeToLiveSeconds) {
+        if (timeToLiveSeconds < 0) {
+            throw new IllegalArgumentException("Invalid timeToLiveSeconds");
+        }
+
+        mDiscoveryCacheTimeToLive = timeToLiveSeconds;
+    }
+
+    /**
+     * Gets the time to live of broker results kept in memory.
+     *
+     * @return time to live in seconds. Zero if results are not kept.
+     */
+    public int getBrokerResultCacheTimeToLive() {
+        return mBrokerResultCacheTimeToLive;
+    }
+
+    /**
+     * Tokens returned by the broker without prompt are kept in memory, so
+     * that repeated silent requests for the same account, resource and
+     * client id do not call the broker again. Results are used for this many
+     * seconds and not after the token expires. They are dropped when broker
+     * accounts change, accounts are removed or prompt is forced. Default is
+     * 0, which disables it.
+     *
+     * @param timeToLiveSeconds time to live in seconds. Non-negative
+     * @throws IllegalArgumentException if timeToLiveSeconds < 0.
+     */
+    public void setBrokerResultCacheTimeToLive(int timeToLiveSeconds) {
+        if (timeToLiveSeconds < 0) {
+            throw new IllegalArgumentException("Invalid timeToLiveSeconds");
+        }
+
+        mBrokerResultCacheTimeToLive = timeToLiveSeconds;
+    }
+
+    /**
+     * Gets the time to live of persisted resource url parameters.
+     *
+     * @return time to live in seconds
+     */
+    public int getParametersCacheTimeToLive() {
+        return mParametersCacheTimeToLive;
+    }
+
+    /**
+     * Authority and resource returned for a resource url are saved in app
+     * private storage by the scheme, host and port of the url, so that
+     * {@link AuthenticationParameters#createFromResourceUrl} does not query
+     * the same host again. Use it only if each host has one resource id.
+     * Saved results are used for this many seconds. Default is 0, which
+     * disables the cache.
+     *
+     * @param timeToLiveSeconds time to live in seconds. Non-negative
+     * @throws IllegalArgumentException if timeToLiveSeconds < 0.
+     */
+    public void setParametersCacheTimeToLive(int timeToLiveSeconds) {
+        if (timeToLiveSeconds < 0) {
+            throw new IllegalArgumentException("Invalid timeToLiveSeconds");
+        }
+
+        mParametersCacheTimeToLive = timeToLiveSeconds;
+    }
 }
@@ -21,7 +21,13 @@ package com.microsoft.aad.adal;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -31,9 +37,11 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageInfo;
@@ -74,6 +82,67 @@ class BrokerProxy implements IBrokerProxy {
 
     private static final int ACCOUNT_MANAGER_ERROR_CODE_BAD_AUTHENTICATION = 9;
 
+    /**
+     * Incremented when accounts change, so user info read before the change
+     * is not used.
+     */
+    private static final AtomicInteger sAccountsGeneration = new AtomicInteger();
+
+    private static volatile UserDirectory sUserDirectory;
+
+    private static boolean sAccountsReceiverRegistered = false;
+
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    /**
+     * Broker results by account, resource and client id.
+     */
+    private static final ConcurrentHashMap<String, CachedResult> sResultCache = new ConcurrentHashMap<String, CachedResult>();
+
+    /**
+     * Result from broker and the time it is used until.
+     */
+    private static final class CachedResult {
+        private final AuthenticationResult mResult;
+
+        private final long mExpiresAt;
+
+        CachedResult(final AuthenticationResult result, final long expiresAt) {
+            mResult = result;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Broker users for the accounts they are read from.
+     */
+    private static final class UserDirectory {
+        private final Account[] mAccounts;
+
+        private final UserInfo[] mUsers;
+
+        /**
+         * Users by lower case user id.
+         */
+        private final HashMap<String, UserInfo> mUsersById = new HashMap<String, UserInfo>();
+
+        private final int mGeneration;
+
+        UserDirectory(final Account[] accounts, final UserInfo[] users, final int generation) {
+            mAccounts = accounts;
+            mUsers = users;
+            mGeneration = generation;
+            for (UserInfo user : users) {
+                if (user != null && !TextUtils.isEmpty(user.getUserId())) {
+                    String key = user.getUserId().toLowerCase(Locale.US);
+                    if (!mUsersById.containsKey(key)) {
+                        mUsersById.put(key, user);
+                    }
+                }
+            }
+        }
+    }
+
     public BrokerProxy() {
         mBrokerTag = AuthenticationSettings.INSTANCE.getBrokerSignature();
     }
@@ -83,6 +152,96 @@ class BrokerProxy implements IBrokerProxy {
         mAcctManager = AccountManager.get(mContext);
         mHandler = new Handler(mContext.getMainLooper());
         mBrokerTag = AuthenticationSettings.INSTANCE.getBrokerSignature();
+        registerAccountsReceiver(mContext);
+    }
+
+    /**
+     * Listens account changes once per process to drop cached broker users.
+     */
+    private static synchronized void registerAccountsReceiver(final Context context) {
+        if (sAccountsReceiverRegistered) {
+            return;
+        }
+
+        Context appContext = context.getApplicationContext() != null ? context
+                .getApplicationContext() : context;
+        try {
+            appContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context receiverContext, Intent intent) {
+                    Logger.v(TAG, "Accounts are changed");
+                    onAccountsChanged();
+                }
+            }, new IntentFilter(AccountManager.LOGIN_ACCOUNTS_CHANGED_ACTION));
+            sAccountsReceiverRegistered = true;
+        } catch (RuntimeException e) {
+            // Cached users are still checked against the account list
+            Logger.w(TAG, "Account changes are not received", e.getMessage(),
+                    ADALError.BROKER_AUTHENTICATOR_EXCEPTION);
+        }
+    }
+
+    static void onAccountsChanged() {
+        sAccountsGeneration.incrementAndGet();
+        sUserDirectory = null;
+        sResultCache.clear();
+    }
+
+    @Override
+    public void clearResultCache() {
+        sResultCache.clear();
+    }
+
+    private static String getResultCacheKey(final Account account,
+            final AuthenticationRequest request) {
+        // Broker issues tokens for each authority
+        return (request.getAuthority() != null ? CacheKey.normalizeAuthority(request
+                .getAuthority()) : null)
+                + "$"
+                + account.name.toLowerCase(Locale.US)
+                + "$"
+                + request.getResource()
+                + "$"
+                + (request.getClientId() != null ? request.getClientId().toLowerCase(Locale.US)
+                        : null);
+    }
+
+    private static AuthenticationResult getCachedResult(final String key) {
+        CachedResult cached = sResultCache.get(key);
+        if (cached == null) {
+            return null;
+        }
+
+        if (cached.mExpiresAt <= System.currentTimeMillis()) {
+            sResultCache.remove(key, cached);
+            return null;
+        }
+
+        return cached.mResult;
+    }
+
+    /**
+     * Keeps the result for the configured time, but not after the token is
+     * considered expired.
+     */
+    private static void putCachedResult(final String key, final AuthenticationResult result,
+            final long tokenExpiresOn) {
+        int timeToLive = AuthenticationSettings.INSTANCE.getBrokerResultCacheTimeToLive();
+        if (timeToLive <= 0 || result == null || result.isInitialRequest()
+                || StringExtensions.IsNullOrBlank(result.getAccessToken())) {
+            return;
+        }
+
+        long expiresAt = System.currentTimeMillis() + (long)timeToLive * MILLIS_PER_SECOND;
+        if (tokenExpiresOn > 0) {
+            expiresAt = Math.min(expiresAt, tokenExpiresOn
+                    - (long)AuthenticationSettings.INSTANCE.getExpirationBuffer()
+                    * MILLIS_PER_SECOND);
+        }
+
+        if (expiresAt > System.currentTimeMillis()) {
+            sResultCache.put(key, new CachedResult(result, expiresAt));
+        }
     }
 
     /**
@@ -175,17 +334,12 @@ class BrokerProxy implements IBrokerProxy {
         return null;
     }
 
-    private UserInfo findUserInfo(String userid, UserInfo[] userList) {
-        if (userList != null) {
-            for (UserInfo user : userList) {
-                if (user != null && !TextUtils.isEmpty(user.getUserId())
-                        && user.getUserId().equalsIgnoreCase(userid)) {
-                    return user;
-                }
-            }
+    private UserInfo findUserInfo(String userid, UserDirectory directory) {
+        if (userid == null) {
+            return null;
         }
 
-        return null;
+        return directory.mUsersById.get(userid.toLowerCase(Locale.US));
     }
     
     /**
@@ -206,8 +360,8 @@ class BrokerProxy implements IBrokerProxy {
             targetAccount = findAccount(request.getBrokerAccountName(), accountList);
         } else {
             try {
-                UserInfo[] users = getBrokerUsers();
-                UserInfo matchingUser = findUserInfo(request.getUserId(), users);
+                UserInfo matchingUser = accountList != null ? findUserInfo(
+                        request.getUserId(), getUserDirectory(accountList)) : null;
                 if (matchingUser != null) {
                     targetAccount = findAccount(matchingUser.getDisplayableId(), accountList);
                 }
@@ -217,11 +371,25 @@ class BrokerProxy implements IBrokerProxy {
         }
 
         if (targetAccount != null) {
+            String resultCacheKey = null;
+            if (AuthenticationSettings.INSTANCE.getBrokerResultCacheTimeToLive() > 0) {
+                resultCacheKey = getResultCacheKey(targetAccount, request);
+                authResult = getCachedResult(resultCacheKey);
+                if (authResult != null) {
+                    Logger.v(TAG, "Returning result from memory without calling Authenticator");
+                    AuthenticationMetrics.getInstance().increment(
+                            AuthenticationMetrics.Counter.CACHE_HIT);
+                    return authResult;
+                }
+            }
+
             Bundle brokerOptions = getBrokerOptions(request);
 
             // blocking call to get token from cache or refresh request in
             // background at Authenticator
             AccountManagerFuture<Bundle> result = null;
+            final long startNanos = System.nanoTime();
+            String error = null;
             try {
                 // It does not expect activity to be launched.
                 // AuthenticatorService is handling the request at
@@ -239,16 +407,31 @@ class BrokerProxy implements IBrokerProxy {
                 // Authenticator should throw OperationCanceledException if
                 // token is not available
                 authResult = getResultFromBrokerResponse(bundleResult);
+                if (resultCacheKey != null) {
+                    putCachedResult(resultCacheKey, authResult,
+                            bundleResult.getLong(AuthenticationConstants.Broker.ACCOUNT_EXPIREDATE, 0));
+                }
             } catch (OperationCanceledException e) {
                 Logger.e(TAG, "Authenticator cancels the request", "",
                         ADALError.AUTH_FAILED_CANCELLED, e);
+                error = ADALError.AUTH_FAILED_CANCELLED.name();
             } catch (AuthenticatorException e) {
                 Logger.e(TAG, "Authenticator cancels the request", "",
                         ADALError.BROKER_AUTHENTICATOR_NOT_RESPONDING);
+                error = ADALError.BROKER_AUTHENTICATOR_NOT_RESPONDING.name();
             } catch (IOException e) {
                 // Authenticator gets problem from webrequest or file read/write
                 Logger.e(TAG, "Authenticator cancels the request", "",
                         ADALError.BROKER_AUTHENTICATOR_IO_EXCEPTION);
+                error = ADALError.BROKER_AUTHENTICATOR_IO_EXCEPTION.name();
+            } catch (AuthenticationException e) {
+                error = e.getCode() != null ? e.getCode().name() : e.getMessage();
+                throw e;
+            } finally {
+                // Results from memory are not broker requests
+                AuthenticationMetrics.getInstance().recordRequest(
+                        AuthenticationMetrics.ENDPOINT_BROKER, System.nanoTime() - startNanos,
+                        request.getCorrelationId(), error);
             }
 
             Logger.v(TAG, "Returning result from Authenticator");
@@ -329,6 +512,7 @@ class BrokerProxy implements IBrokerProxy {
      */
     @Override
     public void removeAccounts() {
+        sResultCache.clear();
         new Thread(new Runnable() {
 
             @Override
@@ -582,37 +766,60 @@ class BrokerProxy implements IBrokerProxy {
 
         Account[] accountList = mAcctManager
                 .getAccountsByType(AuthenticationConstants.Broker.BROKER_ACCOUNT_TYPE);
+        if (accountList != null) {
+            return getUserDirectory(accountList).mUsers.clone();
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets users for the accounts. Cached users are used until accounts
+     * change. Otherwise requests for all accounts are sent before waiting on
+     * the results, so AccountManager runs them in parallel.
+     */
+    private UserDirectory getUserDirectory(final Account[] accountList)
+            throws OperationCanceledException, AuthenticatorException, IOException {
+        int generation = sAccountsGeneration.get();
+        UserDirectory directory = sUserDirectory;
+        if (directory != null && directory.mGeneration == generation
+                && Arrays.equals(directory.mAccounts, accountList)) {
+            Logger.v(TAG, "Using cached broker users");
+            return directory;
+        }
+
         Bundle bundle = new Bundle();
         bundle.putBoolean(DATA_USER_INFO, true);
 
-        if (accountList != null) {
-
-            // get info for each user
-            UserInfo[] users = new UserInfo[accountList.length];
-            for (int i = 0; i < accountList.length; i++) {
-
-                // Use AccountManager Api method to get extended user info
-                AccountManagerFuture<Bundle> result = mAcctManager.updateCredentials(
-                        accountList[i], AuthenticationConstants.Broker.AUTHTOKEN_TYPE, bundle,
-                        null, null, null);
-                Logger.v(TAG, "Waiting for the result");
-                Bundle userInfoBundle = result.getResult();
-
-                users[i] = new UserInfo(
-                        userInfoBundle
-                                .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID),
-                        userInfoBundle
-                                .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_GIVEN_NAME),
-                        userInfoBundle
-                                .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_FAMILY_NAME),
-                        userInfoBundle
-                                .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_IDENTITY_PROVIDER),
-                        userInfoBundle
-                                .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID_DISPLAYABLE));
-            }
+        // Use AccountManager Api method to get extended user info
+        List<AccountManagerFuture<Bundle>> results = new ArrayList<AccountManagerFuture<Bundle>>(
+                accountList.length);
+        for (Account account : accountList) {
+            results.add(mAcctManager.updateCredentials(account,
+                    AuthenticationConstants.Broker.AUTHTOKEN_TYPE, bundle, null, null, null));
+        }
 
-            return users;
+        // get info for each user
+        UserInfo[] users = new UserInfo[accountList.length];
+        for (int i = 0; i < accountList.length; i++) {
+            Logger.v(TAG, "Waiting for the result");
+            Bundle userInfoBundle = results.get(i).getResult();
+
+            users[i] = new UserInfo(
+                    userInfoBundle
+                            .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID),
+                    userInfoBundle
+                            .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_GIVEN_NAME),
+                    userInfoBundle
+                            .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_FAMILY_NAME),
+                    userInfoBundle
+                            .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_IDENTITY_PROVIDER),
+                    userInfoBundle
+                            .getString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID_DISPLAYABLE));
         }
-        return null;
+
+        directory = new UserDirectory(accountList.clone(), users, generation);
+        sUserDirectory = directory;
+        return directory;
     }
 }
@@ -20,9 +20,12 @@ package com.microsoft.aad.adal;
 
 import java.io.Serializable;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * CacheKey will be the object for key.
+ * CacheKey will be the object for key. It is immutable, so the string form
+ * and the hash code are computed once. Normalized authority and client id
+ * values are shared between keys.
  */
 public final class CacheKey implements Serializable {
 
@@ -31,26 +34,139 @@ public final class CacheKey implements Serializable {
      */
     private static final long serialVersionUID = 8067972995583126404L;
 
-    private String mAuthority;
+    private static final char SEPARATOR = '$';
 
-    private String mResource;
+    private static final String MULTI_RESOURCE_YES = "y";
 
-    private String mClientId;
+    private static final String MULTI_RESOURCE_NO = "n";
 
-    private String mUserId;
+    /**
+     * Null fields are formatted as this value.
+     */
+    private static final String NULL_VALUE = "null";
+
+    private static final int SEPARATOR_COUNT = 4;
+
+    /**
+     * Apps use a few authorities and client ids. Normalized values are
+     * dropped when this limit is reached.
+     */
+    private static final int MAX_NORMALIZED_VALUES = 64;
+
+    private static final ConcurrentHashMap<String, String> sNormalizedAuthorities = new ConcurrentHashMap<String, String>();
+
+    private static final ConcurrentHashMap<String, String> sNormalizedClientIds = new ConcurrentHashMap<String, String>();
 
-    private boolean mIsMultipleResourceRefreshToken;
+    private final String mAuthority;
 
-    private CacheKey() {
-        mAuthority = null;
-        mResource = null;
-        mClientId = null;
+    private final String mResource;
+
+    private final String mClientId;
+
+    private final String mUserId;
+
+    private final boolean mIsMultipleResourceRefreshToken;
+
+    private transient String mKey;
+
+    private transient int mHashCode;
+
+    private CacheKey(String authority, String resource, String clientId,
+            boolean isMultipleResourceRefreshToken, String userId) {
+        mAuthority = authority;
+        mResource = resource;
+        mClientId = clientId;
+        mIsMultipleResourceRefreshToken = isMultipleResourceRefreshToken;
+        mUserId = userId;
     }
 
     @Override
     public String toString() {
-        return String.format(Locale.US, "%s$%s$%s$%s$%s", mAuthority, mResource, mClientId,
-                (mIsMultipleResourceRefreshToken ? "y" : "n"), mUserId);
+        String key = mKey;
+        if (key == null) {
+            StringBuilder builder = new StringBuilder(mAuthority.length()
+                    + (mResource != null ? mResource.length() : NULL_VALUE.length())
+                    + mClientId.length()
+                    + (mUserId != null ? mUserId.length() : NULL_VALUE.length())
+                    + MULTI_RESOURCE_YES.length() + SEPARATOR_COUNT);
+            builder.append(mAuthority).append(SEPARATOR).append(mResource).append(SEPARATOR)
+                    .append(mClientId).append(SEPARATOR)
+                    .append(mIsMultipleResourceRefreshToken ? MULTI_RESOURCE_YES : MULTI_RESOURCE_NO)
+                    .append(SEPARATOR).append(mUserId);
+            key = builder.toString();
+            mKey = key;
+        }
+
+        return key;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = mHashCode;
+        if (hashCode == 0) {
+            hashCode = toString().hashCode();
+            mHashCode = hashCode;
+        }
+
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof CacheKey)) {
+            return false;
+        }
+
+        CacheKey other = (CacheKey)obj;
+        return mIsMultipleResourceRefreshToken == other.mIsMultipleResourceRefreshToken
+                && mAuthority.equals(other.mAuthority) && mClientId.equals(other.mClientId)
+                && equalsNullable(mResource, other.mResource)
+                && equalsNullable(mUserId, other.mUserId);
+    }
+
+    private static boolean equalsNullable(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * Parses the key created by this class.
+     * 
+     * @param key cache key string
+     * @return CacheKey or null if the key is not in the expected format
+     */
+    static CacheKey parse(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        // Authority and client id do not contain the separator. Resource may
+        // contain it, so it is taken from the middle.
+        int authorityEnd = key.indexOf(SEPARATOR);
+        int userStart = key.lastIndexOf(SEPARATOR);
+        int flagStart = userStart > 0 ? key.lastIndexOf(SEPARATOR, userStart - 1) : -1;
+        int clientIdStart = flagStart > 0 ? key.lastIndexOf(SEPARATOR, flagStart - 1) : -1;
+        if (authorityEnd < 0 || clientIdStart <= authorityEnd) {
+            return null;
+        }
+
+        String flag = key.substring(flagStart + 1, userStart);
+        if (!MULTI_RESOURCE_YES.equals(flag) && !MULTI_RESOURCE_NO.equals(flag)) {
+            return null;
+        }
+
+        CacheKey cacheKey = new CacheKey(key.substring(0, authorityEnd), nullable(key.substring(
+                authorityEnd + 1, clientIdStart)), key.substring(clientIdStart + 1, flagStart),
+                MULTI_RESOURCE_YES.equals(flag), nullable(key.substring(userStart + 1)));
+        cacheKey.mKey = key;
+        return cacheKey;
+    }
+
+    private static String nullable(String value) {
+        return NULL_VALUE.equals(value) ? null : value;
     }
 
     /**
@@ -63,6 +179,23 @@ public final class CacheKey implements Serializable {
      */
     public static String createCacheKey(String authority, String resource, String clientId,
             boolean isMultiResourceRefreshToken, String userId) {
+        return create(authority, resource, clientId, isMultiResourceRefreshToken, userId)
+                .toString();
+    }
+
+    /**
+     * Creates structured key. Its string form is same as
+     * {@link #createCacheKey(String, String, String, boolean, String)}.
+     * 
+     * @param authority URL of the authenticating authority
+     * @param resource resource identifier
+     * @param clientId client identifier
+     * @param isMultiResourceRefreshToken true/false for refresh token type
+     * @param userId userid provided from {@link UserInfo}
+     * @return CacheKey
+     */
+    public static CacheKey create(String authority, String resource, String clientId,
+            boolean isMultiResourceRefreshToken, String userId) {
 
         if (authority == null) {
             throw new IllegalArgumentException("authority");
@@ -72,32 +205,47 @@ public final class CacheKey implements Serializable {
             throw new IllegalArgumentException("clientId");
         }
 
-        CacheKey key = new CacheKey();
+        if (!isMultiResourceRefreshToken && resource == null) {
+            throw new IllegalArgumentException("resource");
+        }
 
-        if (!isMultiResourceRefreshToken) {
+        // MultiResource token items will be stored without resource
+        return new CacheKey(normalizeAuthority(authority), isMultiResourceRefreshToken ? null
+                : resource, normalizeClientId(clientId), isMultiResourceRefreshToken,
+                StringExtensions.IsNullOrBlank(userId) ? null : userId.toLowerCase(Locale.US));
+    }
 
-            if (resource == null) {
-                throw new IllegalArgumentException("resource");
+    static String normalizeAuthority(String authority) {
+        String normalized = sNormalizedAuthorities.get(authority);
+        if (normalized == null) {
+            normalized = authority.toLowerCase(Locale.US);
+            if (normalized.endsWith("/")) {
+                normalized = normalized.substring(0, normalized.length() - 1);
             }
 
-            // MultiResource token items will be stored without resource
-            key.mResource = resource;
+            putNormalized(sNormalizedAuthorities, authority, normalized);
         }
 
-        key.mAuthority = authority.toLowerCase(Locale.US);
-        if (key.mAuthority.endsWith("/")) {
-            key.mAuthority = (String)key.mAuthority.subSequence(0, key.mAuthority.length() - 1);
+        return normalized;
+    }
+
+    private static String normalizeClientId(String clientId) {
+        String normalized = sNormalizedClientIds.get(clientId);
+        if (normalized == null) {
+            normalized = clientId.toLowerCase(Locale.US);
+            putNormalized(sNormalizedClientIds, clientId, normalized);
         }
 
-        key.mClientId = clientId.toLowerCase(Locale.US);
-        key.mIsMultipleResourceRefreshToken = isMultiResourceRefreshToken;
+        return normalized;
+    }
 
-        // optional
-        if (!StringExtensions.IsNullOrBlank(userId)) {
-            key.mUserId = userId.toLowerCase(Locale.US);
+    private static void putNormalized(ConcurrentHashMap<String, String> values, String value,
+            String normalized) {
+        if (values.size() >= MAX_NORMALIZED_VALUES) {
+            values.clear();
         }
 
-        return key.toString();
+        values.put(value, normalized);
     }
 
     /**
@@ -22,15 +22,40 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.security.interfaces.RSAPrivateKey;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 class ChallangeResponseBuilder {
 
     private static final String TAG = "ChallangeResponseBuilder";
 
+    /**
+     * Device certificate proxy instances by class. Proxy is created again if
+     * its certificate thumbprint changes or it does not match the challenge.
+     */
+    private static final ConcurrentHashMap<Class<?>, DeviceCertProxyEntry> sDeviceCertProxies = new ConcurrentHashMap<Class<?>, DeviceCertProxyEntry>();
+
+    /**
+     * Proxy and the thumbprint that it had when it was created.
+     */
+    private static final class DeviceCertProxyEntry {
+        private final IDeviceCertificate mProxy;
+
+        private final String mThumbprint;
+
+        DeviceCertProxyEntry(final IDeviceCertificate proxy) {
+            mProxy = proxy;
+            mThumbprint = proxy.getThumbPrint();
+        }
+
+        boolean isCurrent() {
+            String thumbprint = mProxy.getThumbPrint();
+            return mThumbprint == null ? thumbprint == null : mThumbprint.equals(thumbprint);
+        }
+    }
+
     private IJWSBuilder mJWSBuilder;
 
     ChallangeResponseBuilder(IJWSBuilder jwsBuilder) {
@@ -108,10 +133,14 @@ class ChallangeResponseBuilder {
                 .getDeviceCertificateProxy();
         if (certClazz != null) {
 
-            IDeviceCertificate deviceCertProxy = getWPJAPIInstance(certClazz);
-            if (deviceCertProxy.isValidIssuer(request.mCertAuthorities)
-                    || (deviceCertProxy.getThumbPrint() != null && deviceCertProxy.getThumbPrint()
-                            .equalsIgnoreCase(request.mThumbprint))) {
+            IDeviceCertificate deviceCertProxy = getDeviceCertProxy(certClazz, false);
+            if (!isMatchingCertificate(deviceCertProxy, request)) {
+                // Cached proxy could have loaded the certificate before the
+                // device is registered again
+                deviceCertProxy = getDeviceCertProxy(certClazz, true);
+            }
+
+            if (isMatchingCertificate(deviceCertProxy, request)) {
                 RSAPrivateKey privateKey = deviceCertProxy.getRSAPrivateKey();
                 if (privateKey != null) {
                     String jwt = mJWSBuilder.generateSignedJWT(request.mNonce, request.mSubmitUrl,
@@ -131,6 +160,29 @@ class ChallangeResponseBuilder {
         return response;
     }
 
+    private static boolean isMatchingCertificate(final IDeviceCertificate deviceCertProxy,
+            final ChallangeRequest request) {
+        return deviceCertProxy.isValidIssuer(request.mCertAuthorities)
+                || (deviceCertProxy.getThumbPrint() != null && deviceCertProxy.getThumbPrint()
+                        .equalsIgnoreCase(request.mThumbprint));
+    }
+
+    /**
+     * Gets the cached proxy for the class. New proxy is created if there is
+     * not one, its thumbprint changed or a new one is requested.
+     */
+    private IDeviceCertificate getDeviceCertProxy(Class<IDeviceCertificate> certClazz,
+            boolean createNew) {
+        DeviceCertProxyEntry entry = sDeviceCertProxies.get(certClazz);
+        if (entry == null || createNew || !entry.isCurrent()) {
+            Logger.v(TAG, "Device certificate proxy is created");
+            entry = new DeviceCertProxyEntry(getWPJAPIInstance(certClazz));
+            sDeviceCertProxies.put(certClazz, entry);
+        }
+
+        return entry.mProxy;
+    }
+
     private IDeviceCertificate getWPJAPIInstance(Class<IDeviceCertificate> certClazz) {
         IDeviceCertificate deviceCertProxy = null;
         Constructor<?> constructor;
@@ -181,26 +233,12 @@ class ChallangeResponseBuilder {
         ChallangeRequest challange = new ChallangeRequest();
         String authenticateHeader = headerValue
                 .substring(AuthenticationConstants.Broker.CHALLANGE_RESPONSE_TYPE.length());
-        ArrayList<String> queryPairs = StringExtensions.splitWithQuotes(authenticateHeader, ',');
-        HashMap<String, String> headerItems = new HashMap<String, String>();
-
-        for (String queryPair : queryPairs) {
-            ArrayList<String> pair = StringExtensions.splitWithQuotes(queryPair, '=');
-            if (pair.size() == 2 && !StringExtensions.IsNullOrBlank(pair.get(0))
-                    && !StringExtensions.IsNullOrBlank(pair.get(1))) {
-                String key = pair.get(0);
-                String value = pair.get(1);
-                key = StringExtensions.URLFormDecode(key);
-                value = StringExtensions.URLFormDecode(value);
-                key = key.trim();
-                value = StringExtensions.removeQuoteInHeaderValue(value.trim());
-                headerItems.put(key, value);
-            } else {
-
-                // invalid format
-                throw new AuthenticationException(ADALError.DEVICE_CERTIFICATE_REQUEST_INVALID,
-                        authenticateHeader);
-            }
+        HashMap<String, String> headerItems = AuthenticateHeaderParser.parseParameters(
+                authenticateHeader, 0);
+        if (headerItems == null) {
+            // invalid format
+            throw new AuthenticationException(ADALError.DEVICE_CERTIFICATE_REQUEST_INVALID,
+                    authenticateHeader);
         }
 
         validateChallangeRequest(headerItems, false);
@@ -21,11 +21,14 @@ package com.microsoft.aad.adal;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 class ClientMetricsEndpointType {
-    public static final String TOKEN = "token";
+    public static final String TOKEN = AuthenticationMetrics.ENDPOINT_TOKEN;
 
-    public static final String INSTANCE_DISCOVERY = "instance";
+    public static final String INSTANCE_DISCOVERY = AuthenticationMetrics.ENDPOINT_INSTANCE_DISCOVERY;
+
+    public static final String BROKER = AuthenticationMetrics.ENDPOINT_BROKER;
 }
 
 enum ClientMetrics {
@@ -43,8 +46,8 @@ enum ClientMetrics {
 
     private static final String CLIENT_METRICS_HEADER_LAST_ENDPOINT = "x-client-last-endpoint";
 
-    private long mStartTimeMillis = 0;
-
+    // Last completed request. It is reported in the headers of the next
+    // request. Guarded by this.
     private String mLastError;
 
     private UUID mLastCorrelationId;
@@ -55,48 +58,49 @@ enum ClientMetrics {
 
     private boolean mIsPending = false;
 
-    private URL mQueryUrl;
-
-    public void beginClientMetricsRecord(URL queryUrl, UUID correlationId,
+    /**
+     * Starts metrics record for a request and adds metrics of the last
+     * completed request to the headers.
+     * 
+     * @param queryUrl request url
+     * @param correlationId correlation id of the request
+     * @param headers request headers
+     * @return record to pass to endClientMetricsRecord
+     */
+    public ClientMetricsRecord beginClientMetricsRecord(URL queryUrl, UUID correlationId,
             HashMap<String, String> headers) {
+        ClientMetricsRecord record = new ClientMetricsRecord(queryUrl, correlationId);
         if (UrlExtensions.isADFSAuthority(queryUrl)) {
             // Don't add for ADFS endpoint
-            return;
+            return record;
         }
 
-        if (mIsPending) {
-            addClientMetricsHeadersToRequest(headers);
+        synchronized (this) {
+            if (mIsPending) {
+                addClientMetricsHeadersToRequest(headers);
+                mIsPending = false;
+            }
         }
 
-        mStartTimeMillis = System.currentTimeMillis();
-        mQueryUrl = queryUrl;
-        mLastCorrelationId = correlationId;
-        mLastError = "";
-        mIsPending = false;
+        return record;
     }
 
-    public void endClientMetricsRecord(String endpoint, UUID correlationId) {
-        if (UrlExtensions.isADFSAuthority(mQueryUrl)) {
+    public void endClientMetricsRecord(ClientMetricsRecord record, String endpoint) {
+        long elapsedNanos = record.getElapsedNanos();
+        AuthenticationMetrics.getInstance().recordRequest(endpoint, elapsedNanos,
+                record.getCorrelationId(), record.getLastError());
+        if (UrlExtensions.isADFSAuthority(record.getQueryUrl())) {
             // Don't send to ADFS endpoint
             return;
         }
 
-        mLastEndpoint = endpoint;
-
-        if (mStartTimeMillis != 0) {
-            mLastResponseTime = System.currentTimeMillis() - mStartTimeMillis;
-            mLastCorrelationId = correlationId;
+        synchronized (this) {
+            mLastEndpoint = endpoint;
+            mLastResponseTime = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            mLastCorrelationId = record.getCorrelationId();
+            mLastError = record.getLastError();
+            mIsPending = true;
         }
-
-        mIsPending = true;
-    }
-
-    public void setLastError(String errorCode) {
-        mLastError = (errorCode != null) ? errorCode.replaceAll("[\\[\\]]", "") : "";
-    }
-
-    public void setLastErrorCodes(String[] errorCodes) {
-        mLastError = (errorCodes != null) ? android.text.TextUtils.join(",", errorCodes) : null;
     }
 
     private void addClientMetricsHeadersToRequest(HashMap<String, String> headers) {
@@ -0,0 +1,67 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.net.URL;
+import java.util.UUID;
+
+/**
+ * Metrics of one request. Each request owns its record, so concurrent
+ * requests do not overwrite each other.
+ */
+final class ClientMetricsRecord {
+
+    private final URL mQueryUrl;
+
+    private final UUID mCorrelationId;
+
+    private final long mStartNanos;
+
+    private String mLastError = "";
+
+    ClientMetricsRecord(final URL queryUrl, final UUID correlationId) {
+        mQueryUrl = queryUrl;
+        mCorrelationId = correlationId;
+        mStartNanos = System.nanoTime();
+    }
+
+    URL getQueryUrl() {
+        return mQueryUrl;
+    }
+
+    UUID getCorrelationId() {
+        return mCorrelationId;
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - mStartNanos;
+    }
+
+    String getLastError() {
+        return mLastError;
+    }
+
+    public void setLastError(String errorCode) {
+        mLastError = (errorCode != null) ? errorCode.replaceAll("[\\[\\]]", "") : "";
+    }
+
+    public void setLastErrorCodes(String[] errorCodes) {
+        mLastError = (errorCodes != null) ? android.text.TextUtils.join(",", errorCodes) : null;
+    }
+}
@@ -24,7 +24,9 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.crypto.NoSuchPaddingException;
 
@@ -32,6 +34,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
 
 import com.google.gson.Gson;
@@ -61,7 +64,44 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
     private static StorageHelper sHelper;
 
     private static Object sLock = new Object();
-    
+
+    /**
+     * Decrypted items kept in memory. It is null if in-memory tier is
+     * disabled.
+     */
+    private transient LinkedHashMap<String, MemoryEntry> mMemoryCache;
+
+    /**
+     * Incremented for each mutation to ignore results from reads that raced
+     * with a write.
+     */
+    private transient long mMemoryCacheVersion = 0;
+
+    /**
+     * Indexes for queries. It is null if changes to SharedPreferences are
+     * not observed.
+     */
+    private transient TokenCacheIndex mIndex;
+
+    /**
+     * SharedPreferences keeps weak references to listeners.
+     */
+    private transient OnSharedPreferenceChangeListener mPrefsListener;
+
+    /**
+     * Decrypted item with the encrypted value it was read from.
+     */
+    private static final class MemoryEntry {
+        private final String mEncrypted;
+
+        private final TokenCacheItem mItem;
+
+        MemoryEntry(String encrypted, TokenCacheItem item) {
+            mEncrypted = encrypted;
+            mItem = item;
+        }
+    }
+
     /**
      * @param context {@link Context}
      * @throws NoSuchAlgorithmException
@@ -100,6 +140,224 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
                 Logger.v(TAG, "Finished to initialize storage helper");
             }
         }
+
+        initializeMemoryCache();
+    }
+
+    private void initializeMemoryCache() {
+        if (!StringExtensions.IsNullOrBlank(AuthenticationSettings.INSTANCE
+                .getSharedPrefPackageName())) {
+            // Changes from other packages are not notified to this process
+            return;
+        }
+
+        // Index is built at the first query
+        mIndex = new TokenCacheIndex();
+
+        final int size = AuthenticationSettings.INSTANCE.getDefaultCacheMemorySize();
+        if (size > 0) {
+            Logger.v(TAG, "In-memory tier is enabled with size:" + size);
+            mMemoryCache = new LinkedHashMap<String, MemoryEntry>(size, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MemoryEntry> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+
+        mPrefsListener = new OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                onPrefsChanged(key);
+            }
+        };
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+    }
+
+    /**
+     * Drops the memory entry and marks the index entry if the stored value is
+     * not the one it was read from. Writes from this store keep their
+     * entries.
+     */
+    private void onPrefsChanged(String key) {
+        if (mMemoryCache != null) {
+            synchronized (mMemoryCache) {
+                if (key == null) {
+                    mMemoryCache.clear();
+                    mMemoryCacheVersion++;
+                } else {
+                    MemoryEntry entry = mMemoryCache.get(key);
+                    if (entry != null && !entry.mEncrypted.equals(mPrefs.getString(key, null))) {
+                        mMemoryCache.remove(key);
+                        mMemoryCacheVersion++;
+                    }
+                }
+            }
+        }
+
+        synchronized (mIndex) {
+            if (key == null) {
+                mIndex.clear();
+                mIndex.setLoaded(false);
+                return;
+            }
+
+            String current = mPrefs.getString(key, null);
+            String indexed = mIndex.getEncrypted(key);
+            if (current == null ? indexed != null : !current.equals(indexed)) {
+                mIndex.markDirty(key);
+            }
+        }
+    }
+
+    private TokenCacheItem getFromMemory(String key) {
+        synchronized (mMemoryCache) {
+            MemoryEntry entry = mMemoryCache.get(key);
+            return entry != null ? new TokenCacheItem(entry.mItem) : null;
+        }
+    }
+
+    private long getMemoryCacheVersion() {
+        synchronized (mMemoryCache) {
+            return mMemoryCacheVersion;
+        }
+    }
+
+    private void putToMemory(String key, String encrypted, TokenCacheItem item, long version) {
+        synchronized (mMemoryCache) {
+            if (version == mMemoryCacheVersion) {
+                mMemoryCache.put(key, new MemoryEntry(encrypted, new TokenCacheItem(item)));
+            }
+        }
+    }
+
+    private void updateMemory(String key, String encrypted, TokenCacheItem item) {
+        synchronized (mMemoryCache) {
+            mMemoryCacheVersion++;
+            if (key == null) {
+                mMemoryCache.clear();
+            } else if (item == null) {
+                mMemoryCache.remove(key);
+            } else {
+                mMemoryCache.put(key, new MemoryEntry(encrypted, new TokenCacheItem(item)));
+            }
+        }
+    }
+
+    /**
+     * Indexes the item if it is still the stored value. Results from reads
+     * that raced with a write are ignored.
+     */
+    private void indexItem(String key, String encrypted, TokenCacheItem item) {
+        synchronized (mIndex) {
+            if (encrypted.equals(mPrefs.getString(key, null))) {
+                mIndex.put(key, encrypted, item);
+            }
+        }
+    }
+
+    private void unindexItem(String key) {
+        synchronized (mIndex) {
+            if (!mPrefs.contains(key)) {
+                mIndex.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Builds the index at the first query and indexes keys changed outside of
+     * this store again.
+     *
+     * @return false if index is not available
+     */
+    private boolean refreshIndex() {
+        if (mIndex == null) {
+            return false;
+        }
+
+        boolean loaded;
+        synchronized (mIndex) {
+            loaded = mIndex.isLoaded();
+        }
+
+        if (!loaded) {
+            Logger.v(TAG, "Building cache index");
+            @SuppressWarnings("unchecked")
+            Map<String, String> results = (Map<String, String>)mPrefs.getAll();
+            for (Map.Entry<String, String> entry : results.entrySet()) {
+                indexEncrypted(entry.getKey(), entry.getValue());
+            }
+
+            synchronized (mIndex) {
+                mIndex.setLoaded(true);
+            }
+        }
+
+        ArrayList<String> dirtyKeys;
+        synchronized (mIndex) {
+            dirtyKeys = mIndex.takeDirtyKeys();
+        }
+
+        for (String key : dirtyKeys) {
+            String encrypted = mPrefs.getString(key, null);
+            if (encrypted == null) {
+                unindexItem(key);
+            } else {
+                indexEncrypted(key, encrypted);
+            }
+        }
+
+        return true;
+    }
+
+    private void indexEncrypted(String key, String encrypted) {
+        TokenCacheItem item = readItem(encrypted);
+        if (item != null) {
+            indexItem(key, encrypted, item);
+        }
+    }
+
+    private TokenCacheItem readItem(String encrypted) {
+        String decrypted = decrypt(encrypted);
+        if (decrypted != null) {
+            return mGson.fromJson(decrypted, TokenCacheItem.class);
+        }
+
+        return null;
+    }
+
+    private Iterator<TokenCacheItem> getItems(ArrayList<String> keys) {
+        ArrayList<TokenCacheItem> items = new ArrayList<TokenCacheItem>(keys.size());
+        for (String key : keys) {
+            TokenCacheItem item = getItem(key);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+
+        return items.iterator();
+    }
+
+    /**
+     * Checks if decrypted items are kept in memory.
+     *
+     * @return true if the in-memory tier is enabled
+     */
+    boolean isMemoryTierEnabled() {
+        return mMemoryCache != null;
+    }
+
+    /**
+     * Loads encryption keys before the first cache access needs them.
+     */
+    void loadKeys() {
+        try {
+            sHelper.loadKeys();
+        } catch (Exception e) {
+            Logger.e(TAG, "Failed to load encryption keys", "", ADALError.ENCRYPTION_FAILED, e);
+        }
     }
 
     private String encrypt(String value) {
@@ -137,11 +395,25 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             throw new IllegalArgumentException("key");
         }
 
+        long memoryVersion = 0;
+        if (mMemoryCache != null) {
+            TokenCacheItem item = getFromMemory(key);
+            if (item != null) {
+                return item;
+            }
+
+            memoryVersion = getMemoryCacheVersion();
+        }
+
         if (mPrefs.contains(key)) {
             String json = mPrefs.getString(key, "");
             String decrypted = decrypt(json);
             if (decrypted != null) {
-                return mGson.fromJson(decrypted, TokenCacheItem.class);
+                TokenCacheItem item = mGson.fromJson(decrypted, TokenCacheItem.class);
+                if (mMemoryCache != null && item != null) {
+                    putToMemory(key, json, item, memoryVersion);
+                }
+                return item;
             }
         }
 
@@ -163,6 +435,14 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
             // apply will do Async disk write operation.
             prefsEditor.apply();
         }
+
+        if (mMemoryCache != null) {
+            updateMemory(key, null, null);
+        }
+
+        if (mIndex != null) {
+            unindexItem(key);
+        }
     }
 
     @Override
@@ -186,6 +466,14 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
 
             // apply will do Async disk write operation.
             prefsEditor.apply();
+
+            if (mMemoryCache != null) {
+                updateMemory(key, encrypted, item);
+            }
+
+            if (mIndex != null) {
+                indexItem(key, encrypted, item);
+            }
         } else {
             Logger.e(TAG, "Encrypted output is null", "", ADALError.ENCRYPTION_FAILED);
         }
@@ -199,35 +487,97 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
         prefsEditor.clear();
         // apply will do Async disk write operation.
         prefsEditor.apply();
+
+        if (mMemoryCache != null) {
+            updateMemory(null, null, null);
+        }
+
+        if (mIndex != null) {
+            synchronized (mIndex) {
+                // Rebuilt at the next query to include items set meanwhile
+                mIndex.clear();
+                mIndex.setLoaded(false);
+            }
+        }
     }
 
     // Extra helper methods can be implemented here for queries
 
     /**
-     * User can query over iterator values.
+     * User can query over iterator values. Items are decrypted one at a time
+     * while iterating.
      */
     @Override
     public Iterator<TokenCacheItem> getAll() {
+        return getAll(null);
+    }
+
+    /**
+     * Iterates over items with matching keys. Keys are checked before the
+     * items are decrypted. Keys that are not created by {@link CacheKey} are
+     * skipped.
+     * 
+     * @param filter filter for cache keys. Null to iterate over all items.
+     * @return items decrypted one at a time while iterating
+     */
+    @Override
+    public Iterator<TokenCacheItem> getAll(ICacheKeyFilter filter) {
 
         argumentCheck();
 
+        // It is a copy of the encrypted values
         @SuppressWarnings("unchecked")
         Map<String, String> results = (Map<String, String>)mPrefs.getAll();
-        Iterator<String> values = results.values().iterator();
+        return new TokenIterator(results.entrySet().iterator(), filter);
+    }
+
+    /**
+     * Decrypts the next matching item when it is requested.
+     */
+    private final class TokenIterator implements Iterator<TokenCacheItem> {
+        private final Iterator<Map.Entry<String, String>> mEntries;
 
-        // create objects
-        ArrayList<TokenCacheItem> tokens = new ArrayList<TokenCacheItem>(results.values().size());
+        private final ICacheKeyFilter mFilter;
 
-        while (values.hasNext()) {
-            String json = values.next();
-            String decrypted = decrypt(json);
-            if (decrypted != null) {
-                TokenCacheItem cacheItem = mGson.fromJson(decrypted, TokenCacheItem.class);
-                tokens.add(cacheItem);
+        private TokenCacheItem mNext;
+
+        TokenIterator(Iterator<Map.Entry<String, String>> entries, ICacheKeyFilter filter) {
+            mEntries = entries;
+            mFilter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && mEntries.hasNext()) {
+                Map.Entry<String, String> entry = mEntries.next();
+                if (mFilter != null) {
+                    CacheKey key = CacheKey.parse(entry.getKey());
+                    if (key == null || !mFilter.accept(key)) {
+                        continue;
+                    }
+                }
+
+                mNext = readItem(entry.getValue());
             }
+
+            return mNext != null;
+        }
+
+        @Override
+        public TokenCacheItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            TokenCacheItem item = mNext;
+            mNext = null;
+            return item;
         }
 
-        return tokens.iterator();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
     }
 
     /**
@@ -237,6 +587,12 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public HashSet<String> getUniqueUsersWithTokenCache() {
+        if (refreshIndex()) {
+            synchronized (mIndex) {
+                return mIndex.getUsers();
+            }
+        }
+
         Iterator<TokenCacheItem> results = this.getAll();
         HashSet<String> users = new HashSet<String>();
 
@@ -258,7 +614,18 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public ArrayList<TokenCacheItem> getTokensForResource(String resource) {
-        Iterator<TokenCacheItem> results = this.getAll();
+        Iterator<TokenCacheItem> results;
+        if (refreshIndex()) {
+            ArrayList<String> keys;
+            synchronized (mIndex) {
+                keys = mIndex.getKeysForResource(resource);
+            }
+
+            results = getItems(keys);
+        } else {
+            results = this.getAll();
+        }
+
         ArrayList<TokenCacheItem> tokenItems = new ArrayList<TokenCacheItem>();
 
         while (results.hasNext()) {
@@ -279,7 +646,18 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public ArrayList<TokenCacheItem> getTokensForUser(String userid) {
-        Iterator<TokenCacheItem> results = this.getAll();
+        Iterator<TokenCacheItem> results;
+        if (refreshIndex()) {
+            ArrayList<String> keys;
+            synchronized (mIndex) {
+                keys = mIndex.getKeysForUser(userid);
+            }
+
+            results = getItems(keys);
+        } else {
+            results = this.getAll();
+        }
+
         ArrayList<TokenCacheItem> tokenItems = new ArrayList<TokenCacheItem>();
 
         while (results.hasNext()) {
@@ -300,6 +678,19 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public void clearTokensForUser(String userid) {
+        if (refreshIndex()) {
+            ArrayList<String> keys;
+            synchronized (mIndex) {
+                keys = mIndex.getKeysForUser(userid);
+            }
+
+            for (String key : keys) {
+                this.removeItem(key);
+            }
+
+            return;
+        }
+
         ArrayList<TokenCacheItem> results = this.getTokensForUser(userid);
 
         for (TokenCacheItem item : results) {
@@ -317,7 +708,18 @@ public class DefaultTokenCacheStore implements ITokenCacheStore, ITokenStoreQuer
      */
     @Override
     public ArrayList<TokenCacheItem> getTokensAboutToExpire() {
-        Iterator<TokenCacheItem> results = this.getAll();
+        Iterator<TokenCacheItem> results;
+        if (refreshIndex()) {
+            ArrayList<String> keys;
+            synchronized (mIndex) {
+                keys = mIndex.getKeysExpiringBefore(getTokenValidityTime().getTimeInMillis());
+            }
+
+            results = getItems(keys);
+        } else {
+            results = this.getAll();
+        }
+
         ArrayList<TokenCacheItem> tokenItems = new ArrayList<TokenCacheItem>();
 
         while (results.hasNext()) {
@@ -25,10 +25,19 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
 
 /**
@@ -37,7 +46,9 @@ import android.net.Uri;
  * instance is valid, it will return tenant discovery endpoint info. Instance
  * discovery endpoint does not verify tenant info, so Discovery implementation
  * sends common as a tenant name. Discovery checks only authorization endpoint.
- * It does not do tenant verification. Initialize and call from UI thread.
+ * It does not do tenant verification. Validated hosts are saved to app
+ * private storage with the tenant discovery endpoint and reused until they
+ * expire. Concurrent queries for the same host share one request.
  */
 final class Discovery implements IDiscovery {
 
@@ -55,6 +66,12 @@ final class Discovery implements IDiscovery {
 
     private static final String TENANT_DISCOVERY_ENDPOINT = "tenant_discovery_endpoint";
 
+    private static final String DISCOVERY_CACHE_NAME = "com.microsoft.aad.adal.discovery";
+
+    private static final String EXPIRES_ON = "expires_on";
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
     /**
      * Sync set of valid hosts to skip query to server if host was verified
      * before.
@@ -67,18 +84,61 @@ final class Discovery implements IDiscovery {
      */
     private static final String TRUSTED_QUERY_INSTANCE = "login.windows.net";
 
+    /**
+     * Hosts loaded from the persisted cache. Entries are used until they
+     * expire.
+     */
+    private static final ConcurrentHashMap<String, DiscoveryCacheEntry> sDiscoveryCache = new ConcurrentHashMap<String, DiscoveryCacheEntry>();
+
+    /**
+     * Instance queries in progress by host.
+     */
+    private static final ConcurrentHashMap<String, FutureTask<Boolean>> sInFlightQueries = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+    private static boolean sDiscoveryCacheLoaded = false;
+
     private UUID mCorrelationId;
 
+    private Context mContext;
+
     /**
      * interface to use in testing.
      */
     private IWebRequestHandler mWebrequestHandler;
 
+    /**
+     * Validated host and its tenant discovery endpoint.
+     */
+    private static final class DiscoveryCacheEntry {
+        private final String mTenantDiscoveryEndpoint;
+
+        private final long mExpiresOn;
+
+        DiscoveryCacheEntry(final String tenantDiscoveryEndpoint, final long expiresOn) {
+            mTenantDiscoveryEndpoint = tenantDiscoveryEndpoint;
+            mExpiresOn = expiresOn;
+        }
+
+        boolean isExpired() {
+            return mExpiresOn <= System.currentTimeMillis();
+        }
+    }
+
     public Discovery() {
         initValidList();
         mWebrequestHandler = new WebRequestHandler();
     }
 
+    /**
+     * Discovery that saves validated hosts to the app private storage.
+     * 
+     * @param context {@link Context} to access the storage
+     */
+    Discovery(final Context context) {
+        this();
+        mContext = context;
+    }
+
     @Override
     public boolean isValidAuthority(URL authorizationEndpoint) {
         // For comparison purposes, convert to lowercase Locale.US
@@ -98,17 +158,154 @@ final class Discovery implements IDiscovery {
                 // Valid hosts will help to skip validation if validated before
                 // call Callback and skip the look up
                 return true;
+            } else if (isInDiscoveryCache(authorizationEndpoint)) {
+                return true;
             } else {
                 // Only query from Prod instance for now, not all of the
                 // instances in the list
-                return queryInstance(authorizationEndpoint);
+                return queryInstanceOnce(authorizationEndpoint);
             }
         }
 
         return false;
     }
 
-    
+    /**
+     * Queries the instance. Concurrent calls for the same host wait for the
+     * first query and use its result.
+     * 
+     * @param authorizationEndpointUrl authority url
+     * @return true if instance is valid
+     */
+    private boolean queryInstanceOnce(final URL authorizationEndpointUrl) {
+        final String host = authorizationEndpointUrl.getHost().toLowerCase(Locale.US);
+        FutureTask<Boolean> query = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return queryInstance(authorizationEndpointUrl);
+            }
+        });
+
+        FutureTask<Boolean> inFlight = sInFlightQueries.putIfAbsent(host, query);
+        if (inFlight == null) {
+            try {
+                query.run();
+            } finally {
+                sInFlightQueries.remove(host, query);
+            }
+            inFlight = query;
+        } else {
+            Logger.v(TAG, "Waiting for the discovery query in progress for the same host");
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.e(TAG, "Discovery query is interrupted", "",
+                    ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED, e);
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+
+            Logger.e(TAG, "Discovery query failed", "",
+                    ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED, e);
+            return false;
+        }
+    }
+
+    private boolean isInDiscoveryCache(final URL authorizationEndpointUrl) {
+        loadDiscoveryCache();
+        String host = authorizationEndpointUrl.getHost().toLowerCase(Locale.US);
+        DiscoveryCacheEntry entry = sDiscoveryCache.get(host);
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.isExpired()) {
+            Logger.v(TAG, "Discovery cache entry is expired for host:" + host);
+            sDiscoveryCache.remove(host, entry);
+            return false;
+        }
+
+        return true;
+    }
+
+    private SharedPreferences getDiscoveryPreferences() {
+        if (mContext == null || AuthenticationSettings.INSTANCE.getDiscoveryCacheTimeToLive() == 0) {
+            return null;
+        }
+
+        return mContext.getSharedPreferences(DISCOVERY_CACHE_NAME, Activity.MODE_PRIVATE);
+    }
+
+    /**
+     * Loads persisted hosts at the first lookup. Expired hosts are removed
+     * from the storage.
+     */
+    private void loadDiscoveryCache() {
+        synchronized (sDiscoveryCache) {
+            SharedPreferences prefs = getDiscoveryPreferences();
+            if (sDiscoveryCacheLoaded || prefs == null) {
+                return;
+            }
+
+            sDiscoveryCacheLoaded = true;
+            SharedPreferences.Editor prefsEditor = prefs.edit();
+            boolean removed = false;
+            for (Map.Entry<String, ?> saved : prefs.getAll().entrySet()) {
+                DiscoveryCacheEntry entry = null;
+                try {
+                    JSONObject json = new JSONObject(String.valueOf(saved.getValue()));
+                    entry = new DiscoveryCacheEntry(json.optString(TENANT_DISCOVERY_ENDPOINT,
+                            null), json.getLong(EXPIRES_ON));
+                } catch (JSONException e) {
+                    Logger.w(TAG, "Discovery cache entry is not valid", "",
+                            ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED);
+                }
+
+                if (entry == null || entry.isExpired()) {
+                    prefsEditor.remove(saved.getKey());
+                    removed = true;
+                } else {
+                    sDiscoveryCache.putIfAbsent(saved.getKey(), entry);
+                }
+            }
+
+            if (removed) {
+                prefsEditor.apply();
+            }
+
+            Logger.v(TAG, "Discovery cache is loaded. Hosts:" + sDiscoveryCache.size());
+        }
+    }
+
+    private void saveToDiscoveryCache(final URL validHost, final String tenantDiscoveryEndpoint) {
+        String host = validHost.getHost().toLowerCase(Locale.US);
+        long timeToLive = AuthenticationSettings.INSTANCE.getDiscoveryCacheTimeToLive();
+        DiscoveryCacheEntry entry = new DiscoveryCacheEntry(tenantDiscoveryEndpoint,
+                System.currentTimeMillis() + timeToLive * MILLIS_PER_SECOND);
+        sDiscoveryCache.put(host, entry);
+
+        SharedPreferences prefs = getDiscoveryPreferences();
+        if (prefs == null) {
+            return;
+        }
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put(TENANT_DISCOVERY_ENDPOINT, tenantDiscoveryEndpoint);
+            json.put(EXPIRES_ON, entry.mExpiresOn);
+            SharedPreferences.Editor prefsEditor = prefs.edit();
+            prefsEditor.putString(host, json.toString());
+            prefsEditor.apply();
+        } catch (JSONException e) {
+            Logger.e(TAG, "Discovery cache entry is not saved", "",
+                    ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED, e);
+        }
+    }
 
     /**
      * add this host as valid to skip another query to server.
@@ -142,31 +339,39 @@ final class Discovery implements IDiscovery {
         // It will query prod instance to verify the authority
         // construct query string for this instance
         URL queryUrl;
-        boolean result = false;       
+        String tenantDiscoveryEndpoint = null;
         try {
             queryUrl = buildQueryString(TRUSTED_QUERY_INSTANCE,
                     getAuthorizationCommonEndpoint(authorizationEndpointUrl));
 
-            result = sendRequest(queryUrl);
+            tenantDiscoveryEndpoint = sendRequest(queryUrl);
         } catch (MalformedURLException e) {
             Logger.e(TAG, "Invalid authority", "", ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_URL,
                     e);
-            result = false;
         } catch (JSONException e) {
             Logger.e(TAG, "Json parsing error", "",
                     ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED, e);
-            result = false;
         }
 
-        if (result) {
+        if (tenantDiscoveryEndpoint != null) {
             // it is validated
             addValidHostToList(authorizationEndpointUrl);
+            saveToDiscoveryCache(authorizationEndpointUrl, tenantDiscoveryEndpoint);
+            return true;
         }
 
-        return result;
+        return false;
     }
 
-    private boolean sendRequest(final URL queryUrl) throws MalformedURLException, JSONException {
+    /**
+     * Sends instance discovery request.
+     * 
+     * @param queryUrl discovery query
+     * @return tenant discovery endpoint or null if instance is not valid
+     * @throws MalformedURLException
+     * @throws JSONException
+     */
+    private String sendRequest(final URL queryUrl) throws MalformedURLException, JSONException {
 
         Logger.v(TAG, "Sending discovery request to:" + queryUrl);
         HashMap<String, String> headers = new HashMap<String, String>();
@@ -180,13 +385,14 @@ final class Discovery implements IDiscovery {
                
         HttpWebResponse webResponse = null;
         String errorCodes = "";
+        final ClientMetricsRecord metrics = ClientMetrics.INSTANCE.beginClientMetricsRecord(
+                queryUrl, mCorrelationId, headers);
         try {
-            ClientMetrics.INSTANCE.beginClientMetricsRecord(queryUrl, mCorrelationId, headers);
             webResponse = mWebrequestHandler.sendGet(queryUrl, headers);
             if (webResponse.getResponseException() == null) {
-                ClientMetrics.INSTANCE.setLastError(null);
+                metrics.setLastError(null);
             } else {
-                ClientMetrics.INSTANCE.setLastError(String.valueOf(webResponse.getStatusCode()));
+                metrics.setLastError(String.valueOf(webResponse.getStatusCode()));
             }
             
             // parse discovery response to find tenant info
@@ -194,10 +400,11 @@ final class Discovery implements IDiscovery {
             if(discoveryResponse.containsKey(AuthenticationConstants.OAuth2.ERROR_CODES))
             {
                 errorCodes = discoveryResponse.get(AuthenticationConstants.OAuth2.ERROR_CODES);
-                ClientMetrics.INSTANCE.setLastError(errorCodes);
+                metrics.setLastError(errorCodes);
             }
             
-            return (discoveryResponse != null && discoveryResponse.containsKey(TENANT_DISCOVERY_ENDPOINT));
+            return discoveryResponse != null ? discoveryResponse.get(TENANT_DISCOVERY_ENDPOINT)
+                    : null;
         } catch (IllegalArgumentException exc) {
             Logger.e(TAG, exc.getMessage(), "", ADALError.DEVELOPER_AUTHORITY_CAN_NOT_BE_VALIDED,
                     exc);
@@ -208,7 +415,8 @@ final class Discovery implements IDiscovery {
             throw e;
         }
         finally {
-            ClientMetrics.INSTANCE.endClientMetricsRecord(ClientMetricsEndpointType.INSTANCE_DISCOVERY, mCorrelationId);                
+            ClientMetrics.INSTANCE.endClientMetricsRecord(metrics,
+                    ClientMetricsEndpointType.INSTANCE_DISCOVERY);
         }
     }
 
@@ -18,18 +18,29 @@
 
 package com.microsoft.aad.adal;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 
 /**
  * Persisted cache that keeps cache in-memory until write operation. Filename
  * should not be used on another instance of FiletokenCacheStore since read
- * operations are not synced to file.
+ * operations are not synced to file. Changes are appended to a journal next
+ * to the snapshot file and the journal is compacted into a new snapshot when
+ * it grows larger than the snapshot. Files are written in the format of
+ * {@link TokenCacheFileFormat} and files from earlier versions are migrated at
+ * the next write.
  */
 public class FileTokenCacheStore implements ITokenCacheStore {
 
@@ -50,6 +61,78 @@ public class FileTokenCacheStore implements ITokenCacheStore {
 
     private final Object mCacheLock = new Object();
 
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * Journal is compacted when it is larger than this ratio of the snapshot
+     * size.
+     */
+    private static final int COMPACTION_RATIO = 2;
+
+    /**
+     * Journal smaller than this is not compacted.
+     */
+    private static final long MIN_COMPACTION_SIZE = 16 * 1024;
+
+    private final File mJournalFile;
+
+    /**
+     * Guards the files. Changes to the cache do not wait for file writes.
+     */
+    private final transient Object mFileLock = new Object();
+
+    /**
+     * Changes that are not appended to the journal yet. Guarded by
+     * mCacheLock.
+     */
+    private final transient LinkedList<JournalRecord> mPendingRecords = new LinkedList<JournalRecord>();
+
+    /**
+     * Generation of the snapshot file. Guarded by mFileLock.
+     */
+    private transient long mGeneration = 0;
+
+    /**
+     * Generation in the header of the journal file. Journal is started again
+     * if it does not match the snapshot. Guarded by mFileLock.
+     */
+    private transient long mJournalGeneration = -1;
+
+    /**
+     * Next write replaces the snapshot instead of appending to the journal.
+     * Guarded by mFileLock.
+     */
+    private transient boolean mCompactionNeeded = false;
+
+    /**
+     * Change waiting to be appended to the journal.
+     */
+    private static final class JournalRecord {
+        private final byte mOp;
+
+        private final String mKey;
+
+        private final TokenCacheItem mItem;
+
+        JournalRecord(final byte op, final String key, final TokenCacheItem item) {
+            mOp = op;
+            mKey = key;
+            mItem = item;
+        }
+    }
+
+    /**
+     * Delay to collect mutations into one write. Zero writes on each
+     * mutation.
+     */
+    private final long mWriteDelayMillis;
+
+    private transient boolean mWriteScheduled = false;
+
+    private static ScheduledExecutorService sWriteExecutor;
+
     /**
      * It tracks data in memory until it writes that to a file with write
      * operation.
@@ -60,6 +143,24 @@ public class FileTokenCacheStore implements ITokenCacheStore {
      *            write to a file.
      */
     public FileTokenCacheStore(Context context, String fileName) {
+        this(context, fileName, 0);
+    }
+
+    /**
+     * It tracks data in memory and writes that to a file in the background
+     * after the given delay. Mutations during the delay are written together.
+     * Call {@link #flush()} to write pending changes before the process is
+     * shut down.
+     * 
+     * @param context {@link Context}
+     * @param fileName filename should be unique to this instance since read
+     *            operations don't read from file directly. write operations
+     *            write to a file.
+     * @param writeDelayMillis delay in milliseconds to collect mutations
+     *            into one write. Zero writes the file on each mutation in the
+     *            calling thread.
+     */
+    public FileTokenCacheStore(Context context, String fileName, long writeDelayMillis) {
         if (context == null) {
             throw new IllegalArgumentException("context");
         }
@@ -68,7 +169,12 @@ public class FileTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("fileName");
         }
 
+        if (writeDelayMillis < 0) {
+            throw new IllegalArgumentException("writeDelayMillis");
+        }
+
         mFileName = fileName;
+        mWriteDelayMillis = writeDelayMillis;
         // It is using package directory not the external storage, so
         // external write permissions are not needed
         mDirectory = context.getDir(context.getPackageName(), Context.MODE_PRIVATE);
@@ -80,28 +186,39 @@ public class FileTokenCacheStore implements ITokenCacheStore {
         // Initialize cache from file if it exists
         try {
             mFile = new File(mDirectory, mFileName);
+            mJournalFile = new File(mDirectory, mFileName + JOURNAL_FILE_SUFFIX);
+            mInMemoryCache = new MemoryTokenCacheStore();
+            HashMap<String, TokenCacheItem> items = new HashMap<String, TokenCacheItem>();
 
             if (mFile.exists()) {
                 Logger.v(TAG, "There is previous cache file to load cache.");
-                FileInputStream inputStream = new FileInputStream(mFile);
-                ObjectInputStream objectStream = new ObjectInputStream(inputStream);
-                Object cacheObj = objectStream.readObject();
-                inputStream.close();
-                objectStream.close();
-
-                if (cacheObj instanceof MemoryTokenCacheStore) {
-                    mInMemoryCache = (MemoryTokenCacheStore)cacheObj;
+                TokenCacheFileFormat.Snapshot snapshot = TokenCacheFileFormat.read(mFile);
+                if (snapshot != null) {
+                    items = snapshot.mItems;
+                    mGeneration = snapshot.mGeneration;
+                    mCompactionNeeded = snapshot.mOutdated;
                 } else {
                     Logger.w(TAG, "Existing cache format is wrong", "",
                             ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
 
                     // Write operation will replace with correct file
-                    mInMemoryCache = new MemoryTokenCacheStore();
+                    mCompactionNeeded = true;
                 }
             } else {
                 Logger.v(TAG, "There is not any previous cache file to load cache.");
-                mInMemoryCache = new MemoryTokenCacheStore();
             }
+
+            if (mJournalFile.exists()) {
+                Logger.v(TAG, "Applying changes from the journal");
+                if (TokenCacheFileFormat.replayJournal(mJournalFile, mGeneration, items)) {
+                    mJournalGeneration = mGeneration;
+                    mCompactionNeeded = mCompactionNeeded || isCompactionNeeded();
+                } else {
+                    mCompactionNeeded = true;
+                }
+            }
+
+            mInMemoryCache.putAll(items);
         } catch (Exception ex) {
             Logger.e(TAG, "Exception during cache load",
                     ExceptionExtensions.getExceptionMessage(ex),
@@ -126,42 +243,186 @@ public class FileTokenCacheStore implements ITokenCacheStore {
 
     @Override
     public void setItem(String key, TokenCacheItem item) {
-        mInMemoryCache.setItem(key, item);
-        writeToFile();
-    }
+        synchronized (mCacheLock) {
+            mInMemoryCache.setItem(key, item);
+            mPendingRecords.add(new JournalRecord(TokenCacheFileFormat.JOURNAL_SET, key, item));
+        }
 
+        onCacheChanged();
+    }
 
     @Override
     public void removeItem(String key) {
-        mInMemoryCache.removeItem(key);
-        writeToFile();
+        synchronized (mCacheLock) {
+            mInMemoryCache.removeItem(key);
+            mPendingRecords.add(new JournalRecord(TokenCacheFileFormat.JOURNAL_REMOVE, key, null));
+        }
+
+        onCacheChanged();
     }
 
     @Override
     public void removeAll() {
-        mInMemoryCache.removeAll();
-        writeToFile();
+        synchronized (mCacheLock) {
+            mInMemoryCache.removeAll();
+
+            // Earlier changes do not matter anymore
+            mPendingRecords.clear();
+            mPendingRecords.add(new JournalRecord(TokenCacheFileFormat.JOURNAL_CLEAR, null, null));
+        }
+
+        onCacheChanged();
     }
 
-    private void writeToFile() {
+    /**
+     * Writes pending changes to the file in the calling thread. It waits for
+     * the background write if it is running. It is needed only if the store
+     * is created with a write delay.
+     */
+    public void flush() {
+        Logger.v(TAG, "Flushing pending changes to the file");
+        writeChanges();
+    }
+
+    private void onCacheChanged() {
+        if (mWriteDelayMillis == 0) {
+            writeChanges();
+            return;
+        }
+
         synchronized (mCacheLock) {
-            if (mFile != null && mInMemoryCache != null) {
-                try {
-
-                    // FileOutputStream will create the file.
-                    FileOutputStream outputStream = new FileOutputStream(mFile);
-                    ObjectOutputStream objectStream = new ObjectOutputStream(outputStream);
-                    objectStream.writeObject(mInMemoryCache);
-                    objectStream.flush();
-                    objectStream.close();
-                    outputStream.close();
-
-                } catch (Exception ex) {
-                    Logger.e(TAG, "Exception during cache flush",
-                            ExceptionExtensions.getExceptionMessage(ex),
-                            ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE);
+            if (mWriteScheduled) {
+                // Scheduled write will include this change
+                return;
+            }
+
+            mWriteScheduled = true;
+        }
+
+        getWriteExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        }, mWriteDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void writePending() {
+        synchronized (mCacheLock) {
+            if (!mWriteScheduled) {
+                return;
+            }
+
+            // Changes after this point schedule another write
+            mWriteScheduled = false;
+        }
+
+        writeChanges();
+    }
+
+    private static synchronized ScheduledExecutorService getWriteExecutor() {
+        if (sWriteExecutor == null) {
+            sWriteExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        return sWriteExecutor;
+    }
+
+    private void writeChanges() {
+        synchronized (mFileLock) {
+            List<JournalRecord> records;
+            synchronized (mCacheLock) {
+                records = new ArrayList<JournalRecord>(mPendingRecords);
+                mPendingRecords.clear();
+            }
+
+            if (records.isEmpty() && !mCompactionNeeded) {
+                return;
+            }
+
+            try {
+                if (!mCompactionNeeded) {
+                    appendToJournal(records);
+                    mCompactionNeeded = isCompactionNeeded();
+                }
+
+                if (mCompactionNeeded) {
+                    writeSnapshot();
                 }
+            } catch (Exception ex) {
+                Logger.e(TAG, "Exception during cache flush",
+                        ExceptionExtensions.getExceptionMessage(ex),
+                        ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE);
+
+                // Journal may miss these changes. Snapshot will be written
+                // from memory at the next write.
+                mCompactionNeeded = true;
+            }
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        long journalSize = mJournalFile.length();
+        return journalSize > MIN_COMPACTION_SIZE
+                && journalSize > mFile.length() * COMPACTION_RATIO;
+    }
+
+    private void appendToJournal(List<JournalRecord> records) throws IOException {
+        // Journal left from an earlier generation is replaced, since records
+        // after its header would be ignored at load
+        boolean newJournal = mJournalGeneration != mGeneration || mJournalFile.length() == 0;
+        FileOutputStream outputStream = new FileOutputStream(mJournalFile, !newJournal);
+        DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+        try {
+            if (newJournal) {
+                TokenCacheFileFormat.writeJournalHeader(dataStream, mGeneration);
+            }
+
+            for (JournalRecord record : records) {
+                TokenCacheFileFormat.writeJournalRecord(dataStream, record.mOp, record.mKey,
+                        record.mItem);
             }
+
+            dataStream.flush();
+            outputStream.getFD().sync();
+            mJournalGeneration = mGeneration;
+        } finally {
+            dataStream.close();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        Logger.v(TAG, "Compacting the journal into the cache file");
+
+        // Snapshot may include changes that are still pending. They are
+        // appended to the new journal and applying them again gives the same
+        // result.
+        long generation = mGeneration + 1;
+
+        // Write to a temp file and rename it, so that the file is not left
+        // partially written. FileOutputStream will create the file.
+        File tempFile = new File(mDirectory, mFileName + TEMP_FILE_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+        try {
+            TokenCacheFileFormat.write(dataStream, generation, mInMemoryCache.getAllItems());
+            dataStream.flush();
+            outputStream.getFD().sync();
+        } finally {
+            dataStream.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            throw new IOException("Temp cache file is not renamed");
+        }
+
+        // Journal of the previous generation is ignored at load even if it is
+        // not deleted. Next append starts it again with the new generation.
+        mGeneration = generation;
+        mCompactionNeeded = false;
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            Logger.w(TAG, "Journal is not deleted", "",
+                    ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE);
         }
     }
 }
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -52,12 +53,25 @@ class HttpWebRequest {
 
     private static int sDebugSimulateDelay = 0;
 
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Content length is set by the server, so larger bodies are not read into
+     * an array of that length.
+     */
+    private static final int MAX_PRESIZED_BODY_LENGTH = 64 * 1024;
+
     private boolean mUseCaches = false;
 
     private boolean mInstanceRedirectsFollow = true;
 
     private String mRequestMethod;
 
+    /**
+     * Status is received for the last attempt.
+     */
+    private boolean mResponseReceived;
+
     URL mUrl;
 
     HttpURLConnection mConnection = null;
@@ -91,8 +105,11 @@ class HttpWebRequest {
 
     /**
      * setupConnection before sending the request.
+     * 
+     * @param reuseConnection true to keep the connection alive for next
+     *            requests to the same host
      */
-    private void setupConnection() {
+    private void setupConnection(boolean reuseConnection) {
         Logger.v(TAG, "HttpWebRequest setupConnection thread:" + android.os.Process.myTid());
         if (mUrl == null) {
             throw new IllegalArgumentException("requestURL");
@@ -103,8 +120,9 @@ class HttpWebRequest {
         }
         HttpURLConnection.setFollowRedirects(true);
         mConnection = openConnection();
-        // To prevent EOF exception.
-        if (Build.VERSION.SDK_INT > 13) {
+        // To prevent EOF exception from stale sockets. GET requests that
+        // reuse connections retry once instead.
+        if (!reuseConnection && mConnection != null) {
             mConnection.setRequestProperty("Connection", "close");
         }
     }
@@ -115,12 +133,33 @@ class HttpWebRequest {
      * @param contentType
      */
     public HttpWebResponse send() {
+        final boolean reuseConnection = AuthenticationSettings.INSTANCE.getUseHttpKeepAlive();
+        HttpWebResponse response = send(reuseConnection);
+        if (reuseConnection && !mResponseReceived && mException instanceof IOException
+                && REQUEST_METHOD_GET.equalsIgnoreCase(mRequestMethod)) {
+            // Pooled socket may be closed by the server. Platform reports it
+            // as EOFException or a plain IOException. Only GET is sent once
+            // more on a connection that is not kept alive. Token requests are
+            // not idempotent, since the server may already have redeemed the
+            // code or refresh token.
+            Logger.v(TAG, "Connection is closed before the response. Retrying once.");
+            mException = null;
+            response = send(false);
+        }
+
+        return response;
+    }
+
+    private HttpWebResponse send(boolean reuseConnection) {
 
         Logger.v(TAG, "HttpWebRequest send thread:" + android.os.Process.myTid());
-        setupConnection();
+        setupConnection(reuseConnection);
         HttpWebResponse response = new HttpWebResponse();
+        mResponseReceived = false;
 
         if (mConnection != null) {
+            InputStream responseStream = null;
+            boolean completed = false;
             try {
                 // Apply the request headers
                 final Iterator<String> headerKeys = mRequestHeaders.keySet().iterator();
@@ -131,8 +170,6 @@ class HttpWebRequest {
                     mConnection.setRequestProperty(header, mRequestHeaders.get(header));
                 }
 
-                // Avoid reuse of existing sockets to avoid random EOF errors
-                System.setProperty("http.keepAlive", "false");
                 mConnection.setReadTimeout(READ_TIME_OUT);
                 mConnection.setInstanceFollowRedirects(mInstanceRedirectsFollow);
                 mConnection.setUseCaches(mUseCaches);
@@ -142,7 +179,6 @@ class HttpWebRequest {
                 setRequestBody();
 
                 byte[] responseBody = null;
-                InputStream responseStream = null;
 
                 try {
                     responseStream = mConnection.getInputStream();
@@ -157,19 +193,10 @@ class HttpWebRequest {
                 // GET request should read status after getInputStream to make
                 // this work for different SDKs
                 getStatusCode(response);
+                mResponseReceived = true;
 
                 if (responseStream != null) {
-
-                    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[4096];
-                    int bytesRead = -1;
-
-                    // Continue to read from stream if not cancelled and not EOF
-                    while ((bytesRead = responseStream.read(buffer)) > 0) {
-                        byteStream.write(buffer, 0, bytesRead);
-                    }
-
-                    responseBody = byteStream.toByteArray();
+                    responseBody = readBody(responseStream, mConnection.getContentLength());
                 }
 
                 // It will only run in debugger and set from outside for testing
@@ -182,12 +209,19 @@ class HttpWebRequest {
                 Logger.v(TAG, "Response is received");
                 response.setBody(responseBody);
                 response.setResponseHeaders(mConnection.getHeaderFields());
+                completed = true;
             } catch (Exception e) {
                 Logger.e(TAG, "Exception:" + e.getMessage(), " Method:" + mRequestMethod,
                         ADALError.SERVER_ERROR, e);
                 mException = e;
             } finally {
-                mConnection.disconnect();
+                if (reuseConnection && completed) {
+                    // Closing the fully read stream returns the socket to the
+                    // pool of the platform for this host.
+                    closeQuietly(responseStream);
+                } else {
+                    mConnection.disconnect();
+                }
                 mConnection = null;
             }
         }
@@ -196,6 +230,58 @@ class HttpWebRequest {
         return response;
     }
 
+    /**
+     * Reads the body into an array of the content length if it is known and
+     * not larger than 64 KB, so that it is not copied again.
+     */
+    private static byte[] readBody(InputStream responseStream, int contentLength)
+            throws IOException {
+        int bytesRead = 0;
+        boolean presized = contentLength > 0 && contentLength <= MAX_PRESIZED_BODY_LENGTH;
+        byte[] buffer = new byte[presized ? contentLength : BUFFER_SIZE];
+        if (presized) {
+            int count;
+            while (bytesRead < contentLength
+                    && (count = responseStream.read(buffer, bytesRead, contentLength - bytesRead)) > 0) {
+                bytesRead += count;
+            }
+
+            if (bytesRead < contentLength) {
+                return Arrays.copyOf(buffer, bytesRead);
+            }
+
+            int next = responseStream.read();
+            if (next == -1) {
+                return buffer;
+            }
+
+            // Content length is not the length of the decoded body
+            buffer = Arrays.copyOf(buffer, contentLength + BUFFER_SIZE);
+            buffer[bytesRead++] = (byte)next;
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(
+                contentLength > MAX_PRESIZED_BODY_LENGTH ? MAX_PRESIZED_BODY_LENGTH : buffer.length);
+        byteStream.write(buffer, 0, bytesRead);
+
+        // Continue to read from stream if not cancelled and not EOF
+        while ((bytesRead = responseStream.read(buffer)) > 0) {
+            byteStream.write(buffer, 0, bytesRead);
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Logger.v(TAG, "Response stream is not closed:" + e.getMessage());
+            }
+        }
+    }
+
     private void getStatusCode(HttpWebResponse response) throws IOException {
         int statusCode = HttpURLConnection.HTTP_BAD_REQUEST;
 
@@ -230,6 +316,30 @@ class HttpWebRequest {
         Logger.v(TAG, "Status code:" + statusCode);
     }
 
+    /**
+     * Connects to the host without sending a request. DNS lookup and TLS
+     * session are cached by the platform, so the next request to the host
+     * connects faster.
+     * 
+     * @param url url of the host
+     */
+    static void warmUp(final URL url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIME_OUT);
+            connection.connect();
+            Logger.v(TAG, "Connected to warm up host:" + url.getHost());
+        } catch (IOException e) {
+            Logger.w(TAG, "Failed to warm up connection to host:" + url.getHost(), "",
+                    ADALError.IO_EXCEPTION);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     /**
      * open connection. If there is any error, set exception inside the response
      * 
@@ -37,6 +37,11 @@ interface IBrokerProxy {
 
     void removeAccounts();
 
+    /**
+     * Drops broker results kept in memory.
+     */
+    void clearResultCache();
+
     void saveAccount(String accountName);
 
     /**
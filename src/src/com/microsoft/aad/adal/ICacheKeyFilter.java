@@ -0,0 +1,35 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+/**
+ * Filter over cache keys. It is called before the item is decrypted, so items
+ * that do not match are not read.
+ */
+public interface ICacheKeyFilter {
+    /**
+     * Checks the key of a cache item. Key values are lower case except the
+     * resource. Resource is null for multi resource refresh tokens and user
+     * id is null if the item is stored without user.
+     * 
+     * @param key parsed cache key
+     * @return true to read the item
+     */
+    boolean accept(CacheKey key);
+}
@@ -26,6 +26,8 @@ public interface ITokenStoreQuery {
 
     Iterator<TokenCacheItem> getAll();
 
+    Iterator<TokenCacheItem> getAll(ICacheKeyFilter filter);
+
     HashSet<String> getUniqueUsersWithTokenCache();
 
     ArrayList<TokenCacheItem> getTokensForResource(String resource);
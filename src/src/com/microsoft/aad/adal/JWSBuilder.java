@@ -27,6 +27,7 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 
 import android.util.Base64;
 
@@ -50,6 +51,32 @@ class JWSBuilder implements IJWSBuilder {
 
     private static final String TAG = "JWSBuilder";
 
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Signature instance is reused by each thread.
+     */
+    private static final ThreadLocal<Signature> SIGNER = new ThreadLocal<Signature>();
+
+    /**
+     * Header for the last certificate. It only changes with the certificate.
+     */
+    private static volatile EncodedHeader sLastHeader;
+
+    /**
+     * Base64 url encoded header for the certificate in DER format.
+     */
+    private static final class EncodedHeader {
+        private final byte[] mCertificate;
+
+        private final String mHeader;
+
+        EncodedHeader(final byte[] certificate, final String header) {
+            mCertificate = certificate;
+            mHeader = header;
+        }
+    }
+
     /**
      * Payload for JWS.
      */
@@ -105,37 +132,15 @@ class JWSBuilder implements IJWSBuilder {
             throw new IllegalArgumentException("pubKey");
         }
 
-        Gson gson = new Gson();
         Claims claims = new Claims();
         claims.mNonce = nonce;
         claims.mAudience = audience;
         claims.mIssueAt = (System.currentTimeMillis() / SECONDS_MS);
 
-        JwsHeader header = new JwsHeader();
-        header.mAlgorithm = JWS_HEADER_ALG;
-        header.mType = "JWT"; // recommended UpperCase in JWT Spec
-
         String signingInput = "", signature = "";
         try {
-
-            // Server side expects x5c in the header to verify the signer and
-            // lookup the certificate from device registration
-            // Each string in the array is a base64
-            // encoded ([RFC4648] Section 4 -- not base64url encoded) DER
-            // [ITU.X690.1994] PKIX certificate value. The certificate
-            // containing the public key corresponding to the key used
-            // to digitally sign the JWS MUST be the first certificate
-            // http://tools.ietf.org/html/draft-ietf-jose-json-web-signature-27
-            header.mCert = new String[1];
-            header.mCert[0] = new String(Base64.encode(cert.getEncoded(), Base64.NO_WRAP),
-                    AuthenticationConstants.ENCODING_UTF8);
-
-            // redundant but current ADFS code base is looking for
-            String headerJsonString = gson.toJson(header);
-            String claimsJsonString = gson.toJson(claims);
-            Logger.v(TAG, "Client certificate challange response JWS Header:" + headerJsonString);
-            signingInput = StringExtensions.encodeBase64URLSafeString(headerJsonString
-                    .getBytes(AuthenticationConstants.ENCODING_UTF8))
+            String claimsJsonString = GSON.toJson(claims);
+            signingInput = getEncodedHeader(cert)
                     + "."
                     + StringExtensions.encodeBase64URLSafeString(claimsJsonString
                             .getBytes(AuthenticationConstants.ENCODING_UTF8));
@@ -150,6 +155,48 @@ class JWSBuilder implements IJWSBuilder {
         return signingInput + "." + signature;
     }
 
+    /**
+     * Gets the encoded header for the certificate. Header is reused while the
+     * same certificate is used.
+     * 
+     * @param cert certificate to add to the header
+     * @return Base64 url encoded header
+     * @throws CertificateEncodingException
+     * @throws UnsupportedEncodingException
+     */
+    private String getEncodedHeader(X509Certificate cert)
+            throws CertificateEncodingException, UnsupportedEncodingException {
+        byte[] der = cert.getEncoded();
+        EncodedHeader lastHeader = sLastHeader;
+        if (lastHeader != null && Arrays.equals(lastHeader.mCertificate, der)) {
+            return lastHeader.mHeader;
+        }
+
+        JwsHeader header = new JwsHeader();
+        header.mAlgorithm = JWS_HEADER_ALG;
+        header.mType = "JWT"; // recommended UpperCase in JWT Spec
+
+        // Server side expects x5c in the header to verify the signer and
+        // lookup the certificate from device registration
+        // Each string in the array is a base64
+        // encoded ([RFC4648] Section 4 -- not base64url encoded) DER
+        // [ITU.X690.1994] PKIX certificate value. The certificate
+        // containing the public key corresponding to the key used
+        // to digitally sign the JWS MUST be the first certificate
+        // http://tools.ietf.org/html/draft-ietf-jose-json-web-signature-27
+        header.mCert = new String[1];
+        header.mCert[0] = new String(Base64.encode(der, Base64.NO_WRAP),
+                AuthenticationConstants.ENCODING_UTF8);
+
+        // redundant but current ADFS code base is looking for
+        String headerJsonString = GSON.toJson(header);
+        Logger.v(TAG, "Client certificate challange response JWS Header:" + headerJsonString);
+        String encodedHeader = StringExtensions.encodeBase64URLSafeString(headerJsonString
+                .getBytes(AuthenticationConstants.ENCODING_UTF8));
+        sLastHeader = new EncodedHeader(der, encodedHeader);
+        return encodedHeader;
+    }
+
     /**
      * Signs the input with the private key.
      * 
@@ -158,9 +205,13 @@ class JWSBuilder implements IJWSBuilder {
      * @return
      */
     private static String sign(RSAPrivateKey privateKey, final byte[] input) {
-        Signature signer = null;
         try {
-            signer = Signature.getInstance(JWS_ALGORITHM);
+            Signature signer = SIGNER.get();
+            if (signer == null) {
+                signer = Signature.getInstance(JWS_ALGORITHM);
+                SIGNER.set(signer);
+            }
+
             signer.initSign(privateKey);
             signer.update(input);
             return StringExtensions.encodeBase64URLSafeString(signer.sign());
@@ -20,6 +20,7 @@ package com.microsoft.aad.adal;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import java.util.TimeZone;
 import java.util.UUID;
 
@@ -28,7 +29,8 @@ import android.util.Log;
 /**
  * Android log output can. If externalLogger is set, it will use that as well.
  * Usage: Logger.v(TAG, message, additionalMessage, errorCode) to log. Set
- * custom logger: Logger.setExternalLogger(..);
+ * custom logger: Logger.setExternalLogger(..); Messages that are expensive to
+ * build should use Logger.v(TAG, format, args) or check isLoggable first.
  */
 public class Logger {
 
@@ -38,6 +40,18 @@ public class Logger {
 
     static final String DATEFORMAT = "yyyy-MM-dd HH:mm:ss";
 
+    /**
+     * SimpleDateFormat is not thread safe, so each thread has its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat(DATEFORMAT, Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return dateFormat;
+        }
+    };
+
     /**
      * Log level.
      */
@@ -76,10 +90,15 @@ public class Logger {
     /**
      * one callback logger.
      */
-    private ILogger mExternalLogger = null;
+    private volatile ILogger mExternalLogger = null;
 
     // enabled by default
-    private boolean mAndroidLogEnabled = true;
+    private volatile boolean mAndroidLogEnabled = true;
+
+    /**
+     * Hands messages to external logger on a background thread if set.
+     */
+    private volatile AsyncLogSink mAsyncSink = null;
 
     private static Logger sInstance = new Logger();
 
@@ -109,6 +128,35 @@ public class Logger {
         this.mLogLevel = level;
     }
 
+    /**
+     * Checks if messages at the level are written anywhere. Use it to skip
+     * building expensive messages.
+     * 
+     * @param level log level
+     * @return true if message at the level is logged
+     */
+    public boolean isLoggable(LogLevel level) {
+        return mLogLevel.compareTo(level) >= 0 && (mAndroidLogEnabled || mExternalLogger != null);
+    }
+
+    /**
+     * Sends messages to the external logger from a background thread, so
+     * that slow loggers do not block requests. Pending messages are kept in
+     * a bounded buffer and the oldest ones are dropped when it is full.
+     * Default is false, which calls the external logger on the logging
+     * thread.
+     * 
+     * @param async true to call external logger asynchronously
+     */
+    public synchronized void setAsyncExternalLogging(boolean async) {
+        if (async && mAsyncSink == null) {
+            mAsyncSink = new AsyncLogSink();
+        } else if (!async && mAsyncSink != null) {
+            mAsyncSink.shutdown();
+            mAsyncSink = null;
+        }
+    }
+
     /**
      * set custom logger.
      * 
@@ -141,69 +189,102 @@ public class Logger {
     }
 
     public void verbose(String tag, String message, String additionalMessage, ADALError errorCode) {
-        if (mLogLevel.compareTo(LogLevel.Verbose) < 0) {
+        if (!isLoggable(LogLevel.Verbose)) {
             return;
         }
 
-        if (mAndroidLogEnabled) {
-            Log.v(tag, getLogMessage(message, additionalMessage, errorCode));
-        }
-
-        logCommon(tag, message, additionalMessage, LogLevel.Verbose, errorCode);
+        log(tag, message, additionalMessage, LogLevel.Verbose, errorCode, null);
     }
 
     public void inform(String tag, String message, String additionalMessage, ADALError errorCode) {
-        if (mLogLevel.compareTo(LogLevel.Info) < 0) {
+        if (!isLoggable(LogLevel.Info)) {
             return;
         }
 
-        if (mAndroidLogEnabled) {
-            Log.i(tag, getLogMessage(message, additionalMessage, errorCode));
-        }
-
-        logCommon(tag, message, additionalMessage, LogLevel.Info, errorCode);
+        log(tag, message, additionalMessage, LogLevel.Info, errorCode, null);
     }
 
     public void warn(String tag, String message, String additionalMessage, ADALError errorCode) {
-        if (mLogLevel.compareTo(LogLevel.Warn) < 0) {
+        if (!isLoggable(LogLevel.Warn)) {
             return;
         }
 
-        if (mAndroidLogEnabled) {
-            Log.w(tag, getLogMessage(message, additionalMessage, errorCode));
-        }
-
-        logCommon(tag, message, additionalMessage, LogLevel.Warn, errorCode);
+        log(tag, message, additionalMessage, LogLevel.Warn, errorCode, null);
     }
 
     public void error(String tag, String message, String additionalMessage, ADALError errorCode) {
-        if (mAndroidLogEnabled) {
-            Log.e(tag, getLogMessage(message, additionalMessage, errorCode));
-        }
-
-        logCommon(tag, message, additionalMessage, LogLevel.Error, errorCode);
+        log(tag, message, additionalMessage, LogLevel.Error, errorCode, null);
     }
 
     public void error(String tag, String message, String additionalMessage, ADALError errorCode,
             Throwable err) {
-        if (mAndroidLogEnabled) {
-            Log.e(tag, getLogMessage(message, additionalMessage, errorCode), err);
+        log(tag, message, additionalMessage, LogLevel.Error, errorCode, err);
+    }
+
+    /**
+     * Writes message to Android log and external logger. Date and
+     * correlation id are added once for both.
+     */
+    private void log(String tag, String message, String additionalMessage, LogLevel level,
+            ADALError errorCode, Throwable err) {
+        final boolean androidLogEnabled = mAndroidLogEnabled;
+        if (!androidLogEnabled && mExternalLogger == null) {
+            return;
         }
 
-        logCommon(tag, message, additionalMessage, LogLevel.Error, errorCode);
+        final String messageWithInfo = addMoreInfo(message);
+        if (androidLogEnabled) {
+            String logMessage = getLogMessage(message != null ? messageWithInfo : null,
+                    additionalMessage, errorCode);
+            switch (level) {
+                case Error:
+                    Log.e(tag, logMessage, err);
+                    break;
+                case Warn:
+                    Log.w(tag, logMessage);
+                    break;
+                case Info:
+                    Log.i(tag, logMessage);
+                    break;
+                default:
+                    Log.v(tag, logMessage);
+                    break;
+            }
+        }
+
+        logExternal(tag, messageWithInfo, additionalMessage, level, errorCode);
     }
 
     private void logCommon(String tag, String message, String additionalMessage, LogLevel level,
             ADALError errorCode) {
-        message = addMoreInfo(message);
-
         if (mExternalLogger != null) {
-            try {
-                mExternalLogger.Log(tag, message, additionalMessage, level, errorCode);
-            } catch (Exception e) {
-                // log message as warning to report callback error issue
-                Log.w(tag, String.format(CUSTOM_LOG_ERROR, message));
-            }
+            logExternal(tag, addMoreInfo(message), additionalMessage, level, errorCode);
+        }
+    }
+
+    private void logExternal(String tag, String message, String additionalMessage,
+            LogLevel level, ADALError errorCode) {
+        final ILogger externalLogger = mExternalLogger;
+        if (externalLogger == null) {
+            return;
+        }
+
+        final AsyncLogSink asyncSink = mAsyncSink;
+        if (asyncSink != null) {
+            asyncSink.post(externalLogger, tag, message, additionalMessage, level, errorCode);
+            return;
+        }
+
+        callExternalLogger(externalLogger, tag, message, additionalMessage, level, errorCode);
+    }
+
+    static void callExternalLogger(ILogger externalLogger, String tag, String message,
+            String additionalMessage, LogLevel level, ADALError errorCode) {
+        try {
+            externalLogger.Log(tag, message, additionalMessage, level, errorCode);
+        } catch (Exception e) {
+            // log message as warning to report callback error issue
+            Log.w(tag, String.format(CUSTOM_LOG_ERROR, message));
         }
     }
 
@@ -214,7 +295,6 @@ public class Logger {
             msg.append(getCodeName(errorCode)).append(":");
         }
         if (message != null) {
-            message = addMoreInfo(message);
             msg.append(message);
         }
         if (additionalMessage != null) {
@@ -244,6 +324,54 @@ public class Logger {
         Logger.getInstance().verbose(tag, message, additionalMessage, errorCode);
     }
 
+    /**
+     * Logs verbose message that is formatted only if verbose level is
+     * logged. It does not allocate an argument array if the level is not
+     * logged.
+     * 
+     * @param tag
+     * @param format format string for {@link String#format}
+     * @param arg argument for the format
+     */
+    public static void v(String tag, String format, Object arg) {
+        final Logger logger = Logger.getInstance();
+        if (logger.isLoggable(LogLevel.Verbose)) {
+            logger.verbose(tag, String.format(Locale.US, format, arg), null, null);
+        }
+    }
+
+    /**
+     * Logs verbose message that is formatted only if verbose level is
+     * logged. It does not allocate an argument array if the level is not
+     * logged.
+     * 
+     * @param tag
+     * @param format format string for {@link String#format}
+     * @param arg1 first argument for the format
+     * @param arg2 second argument for the format
+     */
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        final Logger logger = Logger.getInstance();
+        if (logger.isLoggable(LogLevel.Verbose)) {
+            logger.verbose(tag, String.format(Locale.US, format, arg1, arg2), null, null);
+        }
+    }
+
+    /**
+     * Logs verbose message that is formatted only if verbose level is
+     * logged.
+     * 
+     * @param tag
+     * @param format format string for {@link String#format}
+     * @param formatArgs arguments for the format
+     */
+    public static void v(String tag, String format, Object... formatArgs) {
+        final Logger logger = Logger.getInstance();
+        if (logger.isLoggable(LogLevel.Verbose)) {
+            logger.verbose(tag, String.format(Locale.US, format, formatArgs), null, null);
+        }
+    }
+
     public static void w(String tag, String message, String additionalMessage, ADALError errorCode) {
         Logger.getInstance().warn(tag, message, additionalMessage, errorCode);
     }
@@ -288,11 +416,7 @@ public class Logger {
     }
 
     private static String GetUTCdatetimeAsString() {
-        final SimpleDateFormat dateFormat = new SimpleDateFormat(DATEFORMAT);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        final String utcTime = dateFormat.format(new Date());
-
-        return utcTime;
+        return DATE_FORMAT.get().format(new Date());
     }
 
     public String getCorrelationId() {
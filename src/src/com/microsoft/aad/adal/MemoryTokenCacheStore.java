@@ -19,13 +19,22 @@
 package com.microsoft.aad.adal;
 
 import java.io.IOException;
-import java.io.NotActiveException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.aad.adal.Logger.LogLevel;
 
 /**
  * tokenCacheItem is not persisted. Memory cache does not keep static items.
+ * Reads do not lock and writes to different keys do not block each other.
+ * Cache can be bounded by the number of items. When it is full, items with an
+ * expired access token and without a refresh token are evicted first, then
+ * the least recently used items.
  */
 public class MemoryTokenCacheStore implements ITokenCacheStore {
 
@@ -36,14 +45,86 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
 
     private static final String TAG = "MemoryTokenCacheStore";
 
-    private final HashMap<String, TokenCacheItem> mCache = new HashMap<String, TokenCacheItem>();
+    private static final String SERIALIZED_CACHE_FIELD = "mCache";
+
+    private static final String SERIALIZED_MAX_ITEMS_FIELD = "mMaxItems";
+
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    /**
+     * Serialized form is a HashMap as in earlier versions, so files written
+     * by them are still read.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField(SERIALIZED_CACHE_FIELD, HashMap.class),
+            new ObjectStreamField(SERIALIZED_MAX_ITEMS_FIELD, Integer.TYPE)
+    };
+
+    private transient ConcurrentHashMap<String, CacheEntry> mCache = new ConcurrentHashMap<String, CacheEntry>();
+
+    /**
+     * Max number of items. Zero is not bounded.
+     */
+    private transient int mMaxItems;
 
-    private transient Object mCacheLock = new Object();
+    private transient Object mEvictionLock = new Object();
+
+    private transient AtomicLong mEvictionCount = new AtomicLong();
+
+    private transient AtomicLong mExpiredEvictionCount = new AtomicLong();
+
+    /**
+     * Item with its last access time for eviction.
+     */
+    private static final class CacheEntry {
+        private final TokenCacheItem mItem;
+
+        private volatile long mLastAccess;
+
+        CacheEntry(final TokenCacheItem item) {
+            mItem = item;
+            mLastAccess = System.nanoTime();
+        }
+    }
 
     /**
      * Creates MemoryTokenCacheStore.
      */
     public MemoryTokenCacheStore() {
+        this(0);
+    }
+
+    /**
+     * Creates MemoryTokenCacheStore that keeps at most the given number of
+     * items.
+     * 
+     * @param maxItems max number of items. Zero is not bounded.
+     */
+    public MemoryTokenCacheStore(int maxItems) {
+        if (maxItems < 0) {
+            throw new IllegalArgumentException("maxItems");
+        }
+
+        mMaxItems = maxItems;
+    }
+
+    /**
+     * Gets the number of items evicted because the cache is full.
+     * 
+     * @return number of evicted items including the expired ones
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Gets the number of evicted items that had an expired access token and
+     * no refresh token.
+     * 
+     * @return number of evicted expired items
+     */
+    public long getExpiredEvictionCount() {
+        return mExpiredEvictionCount.get();
     }
 
     @Override
@@ -52,10 +133,17 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.v(TAG, "Get Item from cache. Key:" + key);
-        synchronized (mCacheLock) {
-            return mCache.get(key);
+        logKey("Get Item from cache. Key:", key);
+        CacheEntry entry = mCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (mMaxItems > 0) {
+            entry.mLastAccess = System.nanoTime();
         }
+
+        return entry.mItem;
     }
 
     @Override
@@ -68,10 +156,9 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.v(TAG, "Set Item to cache. Key:" + key);
-        synchronized (mCacheLock) {
-            mCache.put(key, item);
-        }
+        logKey("Set Item to cache. Key:", key);
+        mCache.put(key, new CacheEntry(item));
+        evictIfFull();
     }
 
     @Override
@@ -80,28 +167,142 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.v(TAG, "Remove Item from cache. Key:" + key.hashCode());
-        synchronized (mCacheLock) {
-            mCache.remove(key);
+        logKey("Remove Item from cache. Key:", key);
+        mCache.remove(key);
+    }
+
+    /**
+     * Removes the item only if it still has the given refresh token. A
+     * refresh result written by another request is kept.
+     *
+     * @param key cache key
+     * @param refreshToken refresh token that is not valid anymore
+     * @return true if the item is removed
+     */
+    boolean removeItemIfRefreshToken(String key, String refreshToken) {
+        if (key == null) {
+            throw new IllegalArgumentException("key");
+        }
+
+        logKey("Remove Item from cache if it is not updated. Key:", key);
+        while (true) {
+            CacheEntry current = mCache.get(key);
+            if (current == null || refreshToken == null
+                    || !refreshToken.equals(current.mItem.getRefreshToken())) {
+                return false;
+            }
+
+            if (mCache.remove(key, current)) {
+                return true;
+            }
         }
     }
 
     @Override
     public void removeAll() {
-        Logger.v(TAG, "Remove all items from cache. Key:");
-        synchronized (mCacheLock) {
-            mCache.clear();
+        Logger.v(TAG, "Remove all items from cache.");
+        mCache.clear();
+    }
+
+    /**
+     * Gets a copy of all items.
+     *
+     * @return items by key
+     */
+    HashMap<String, TokenCacheItem> getAllItems() {
+        HashMap<String, TokenCacheItem> items = new HashMap<String, TokenCacheItem>(mCache.size());
+        for (Map.Entry<String, CacheEntry> entry : mCache.entrySet()) {
+            items.put(entry.getKey(), entry.getValue().mItem);
         }
+
+        return items;
     }
 
-    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
-        out.defaultWriteObject();
+    /**
+     * Adds items without logging each key. It is used to load persisted
+     * items.
+     *
+     * @param items items by key
+     */
+    void putAll(Map<String, TokenCacheItem> items) {
+        for (Map.Entry<String, TokenCacheItem> item : items.entrySet()) {
+            mCache.put(item.getKey(), new CacheEntry(item.getValue()));
+        }
+
+        evictIfFull();
+    }
+
+    private void evictIfFull() {
+        if (mMaxItems <= 0 || mCache.size() <= mMaxItems) {
+            return;
+        }
+
+        synchronized (mEvictionLock) {
+            // Items that can not be used to get a token are removed together
+            long validity = System.currentTimeMillis()
+                    + (long)AuthenticationSettings.INSTANCE.getExpirationBuffer()
+                    * MILLIS_PER_SECOND;
+            for (Map.Entry<String, CacheEntry> entry : mCache.entrySet()) {
+                if (mCache.size() <= mMaxItems) {
+                    return;
+                }
+
+                if (isExpiredWithoutRefreshToken(entry.getValue().mItem, validity)
+                        && mCache.remove(entry.getKey(), entry.getValue())) {
+                    mExpiredEvictionCount.incrementAndGet();
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+
+            while (mCache.size() > mMaxItems) {
+                Map.Entry<String, CacheEntry> eldest = null;
+                for (Map.Entry<String, CacheEntry> entry : mCache.entrySet()) {
+                    if (eldest == null
+                            || entry.getValue().mLastAccess - eldest.getValue().mLastAccess < 0) {
+                        eldest = entry;
+                    }
+                }
+
+                if (eldest == null) {
+                    return;
+                }
+
+                if (mCache.remove(eldest.getKey(), eldest.getValue())) {
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+        }
+
+        Logger.v(TAG, "Items are evicted. Total evicted:" + mEvictionCount.get());
     }
 
-    private synchronized void readObject(ObjectInputStream inputStream) throws NotActiveException,
-            IOException, ClassNotFoundException {
-        inputStream.defaultReadObject();
-        mCacheLock = new Object();
+    private static boolean isExpiredWithoutRefreshToken(TokenCacheItem item, long validity) {
+        return StringExtensions.IsNullOrBlank(item.getRefreshToken())
+                && item.getExpiresOn() != null && item.getExpiresOn().getTime() < validity;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Copy is a consistent view while other threads update the cache
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put(SERIALIZED_CACHE_FIELD, getAllItems());
+        fields.put(SERIALIZED_MAX_ITEMS_FIELD, mMaxItems);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream inputStream) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = inputStream.readFields();
+        mCache = new ConcurrentHashMap<String, CacheEntry>();
+        mMaxItems = fields.get(SERIALIZED_MAX_ITEMS_FIELD, 0);
+        mEvictionLock = new Object();
+        mEvictionCount = new AtomicLong();
+        mExpiredEvictionCount = new AtomicLong();
+        HashMap<String, TokenCacheItem> items = (HashMap<String, TokenCacheItem>)fields.get(
+                SERIALIZED_CACHE_FIELD, null);
+        if (items != null) {
+            putAll(items);
+        }
     }
 
     @Override
@@ -110,9 +311,14 @@ public class MemoryTokenCacheStore implements ITokenCacheStore {
             throw new IllegalArgumentException("key");
         }
 
-        Logger.v(TAG, "contains Item from cache. Key:" + key.toString());
-        synchronized (mCacheLock) {
-            return mCache.get(key) != null;
+        logKey("contains Item from cache. Key:", key);
+        return mCache.containsKey(key);
+    }
+
+    private static void logKey(String message, String key) {
+        // Key has user id, so only its hash is logged
+        if (Logger.getInstance().isLoggable(LogLevel.Verbose)) {
+            Logger.v(TAG, message + key.hashCode());
         }
     }
 }
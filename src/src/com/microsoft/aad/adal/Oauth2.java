@@ -18,13 +18,18 @@
 
 package com.microsoft.aad.adal;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
@@ -37,6 +42,8 @@ import com.microsoft.aad.adal.ChallangeResponseBuilder.ChallangeResponse;
 import android.net.Uri;
 import android.os.Build;
 import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 /**
  * Base Oauth class.
@@ -57,6 +64,21 @@ class Oauth2 {
 
     private final static String JSON_PARSING_ERROR = "It failed to parse response as json";
 
+    /**
+     * Fields of the token response that are used for the result.
+     */
+    private static final HashSet<String> TOKEN_RESPONSE_FIELDS = new HashSet<String>(
+            Arrays.asList(AuthenticationConstants.OAuth2.ERROR,
+                    AuthenticationConstants.OAuth2.ERROR_DESCRIPTION,
+                    AuthenticationConstants.OAuth2.ERROR_CODES,
+                    AuthenticationConstants.AAD.CORRELATION_ID,
+                    AuthenticationConstants.OAuth2.CODE,
+                    AuthenticationConstants.OAuth2.ACCESS_TOKEN,
+                    AuthenticationConstants.OAuth2.REFRESH_TOKEN,
+                    AuthenticationConstants.OAuth2.EXPIRES_IN,
+                    AuthenticationConstants.AAD.RESOURCE,
+                    AuthenticationConstants.OAuth2.ID_TOKEN));
+
     Oauth2(AuthenticationRequest request) {
         mRequest = request;
         mWebRequestHandler = null;
@@ -322,6 +344,75 @@ class Oauth2 {
         return null;
     }
 
+    /**
+     * Reads the fields used for the result from the token response in UTF-8.
+     * Other fields are skipped without creating values for them.
+     * 
+     * @param body response body
+     * @return fields by name
+     * @throws IOException
+     */
+    private static HashMap<String, String> readTokenResponse(byte[] body) throws IOException {
+        HashMap<String, String> responseItems = new HashMap<String, String>();
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body),
+                "UTF-8"));
+        try {
+            // org.json parser accepted non-standard json
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                String value = null;
+                if (TOKEN_RESPONSE_FIELDS.contains(name)) {
+                    value = readJsonValue(reader);
+                } else {
+                    reader.skipValue();
+                }
+
+                if (value != null) {
+                    responseItems.put(name, value);
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        return responseItems;
+    }
+
+    /**
+     * Reads value as string. Arrays are formatted as json arrays. Objects and
+     * nulls are skipped.
+     */
+    private static String readJsonValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        } else if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            StringBuilder array = new StringBuilder("[");
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (array.length() > 1) {
+                    array.append(',');
+                }
+
+                if (reader.peek() == JsonToken.STRING) {
+                    array.append(JSONObject.quote(reader.nextString()));
+                } else {
+                    array.append(readJsonValue(reader));
+                }
+            }
+            reader.endArray();
+            return array.append(']').toString();
+        }
+
+        reader.skipValue();
+        return null;
+    }
+
     private static void extractJsonObjects(HashMap<String, String> responseItems, String jsonStr)
             throws JSONException {
         final JSONObject jsonObject = new JSONObject(jsonStr);
@@ -446,10 +537,10 @@ class Oauth2 {
             throw new AuthenticationException(ADALError.DEVELOPER_AUTHORITY_IS_NOT_VALID_URL);
         }
 
+        mWebRequestHandler.setRequestCorrelationId(mRequest.getCorrelationId());
+        final ClientMetricsRecord metrics = ClientMetrics.INSTANCE.beginClientMetricsRecord(
+                authority, mRequest.getCorrelationId(), headers);
         try {
-            mWebRequestHandler.setRequestCorrelationId(mRequest.getCorrelationId());
-            ClientMetrics.INSTANCE.beginClientMetricsRecord(authority, mRequest.getCorrelationId(),
-                    headers);
             HttpWebResponse response = mWebRequestHandler.sendPost(authority, headers,
                     requestMessage.getBytes(AuthenticationConstants.ENCODING_UTF8),
                     "application/x-www-form-urlencoded");
@@ -502,7 +593,7 @@ class Oauth2 {
                 // the error and error description
                 Logger.v(TAG, "Token request does not have exception");
                 result = processTokenResponse(response);
-                ClientMetrics.INSTANCE.setLastError(null);
+                metrics.setLastError(null);
             }
 
             if (result == null) {
@@ -520,23 +611,22 @@ class Oauth2 {
                     throw response.getResponseException();
                 }
             } else {
-                ClientMetrics.INSTANCE.setLastErrorCodes(result.getErrorCodes());
+                metrics.setLastErrorCodes(result.getErrorCodes());
             }
         } catch (IllegalArgumentException e) {
-            ClientMetrics.INSTANCE.setLastError(null);
+            metrics.setLastError(null);
             Logger.e(TAG, e.getMessage(), "", ADALError.ARGUMENT_EXCEPTION, e);
             throw e;
         } catch (UnsupportedEncodingException e) {
-            ClientMetrics.INSTANCE.setLastError(null);
+            metrics.setLastError(null);
             Logger.e(TAG, e.getMessage(), "", ADALError.ENCODING_IS_NOT_SUPPORTED, e);
             throw e;
         } catch (Exception e) {
-            ClientMetrics.INSTANCE.setLastError(null);
+            metrics.setLastError(null);
             Logger.e(TAG, e.getMessage(), "", ADALError.SERVER_ERROR, e);
             throw e;
         } finally {
-            ClientMetrics.INSTANCE.endClientMetricsRecord(ClientMetricsEndpointType.TOKEN,
-                    mRequest.getCorrelationId());
+            ClientMetrics.INSTANCE.endClientMetricsRecord(metrics, ClientMetricsEndpointType.TOKEN);
         }
 
         return result;
@@ -572,7 +662,6 @@ class Oauth2 {
      */
     private AuthenticationResult processTokenResponse(HttpWebResponse webResponse) {
         AuthenticationResult result = new AuthenticationResult();
-        HashMap<String, String> responseItems = new HashMap<String, String>();
         String correlationIdInHeader = null;
         if (webResponse.getResponseHeaders() != null
                 && webResponse.getResponseHeaders().containsKey(
@@ -590,8 +679,7 @@ class Oauth2 {
             // invalid refresh token calls has error related items in the body.
             // Status is 400 for those.
             try {
-                String jsonStr = new String(webResponse.getBody());
-                extractJsonObjects(responseItems, jsonStr);
+                HashMap<String, String> responseItems = readTokenResponse(webResponse.getBody());
                 result = processUIResponseParams(responseItems);
             } catch (final Exception ex) {
                 // There is no recovery possible here, so
@@ -0,0 +1,302 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs async work for {@link AuthenticationContext}. Cache lookups run on a
+ * fast lane, so they are not queued behind network calls. Network bound work
+ * runs on a bounded pool and the number of parallel requests to the same
+ * authority is limited. In serial mode all work runs on a single thread in
+ * submission order.
+ */
+final class RequestExecutor {
+
+    private static final String TAG = "RequestExecutor";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static RequestExecutor sInstance;
+
+    private final boolean mSerial;
+
+    private final ExecutorService mFastLane;
+
+    private final ExecutorService mNetworkPool;
+
+    private final int mMaxRequestsPerAuthority;
+
+    private final HashMap<String, AuthorityLane> mAuthorityLanes = new HashMap<String, AuthorityLane>();
+
+    /**
+     * Running and waiting work for one authority.
+     */
+    private static final class AuthorityLane {
+        private int mRunning = 0;
+
+        private final LinkedList<NetworkTask<?>> mPending = new LinkedList<NetworkTask<?>>();
+    }
+
+    /**
+     * Future that is completed by the executor after fast or network work is
+     * done.
+     */
+    private static final class ResultFuture<V> extends FutureTask<V> {
+        ResultFuture() {
+            super(new Callable<V>() {
+                @Override
+                public V call() {
+                    throw new IllegalStateException("Result is set by the executor");
+                }
+            });
+        }
+
+        void setResult(V result) {
+            set(result);
+        }
+
+        void setError(Throwable error) {
+            setException(error);
+        }
+    }
+
+    /**
+     * Network bound work that completes its future. If the executor rejects
+     * it, the future is completed with the error.
+     */
+    private static final class NetworkTask<V> implements Runnable {
+        private final ResultFuture<V> mFuture;
+
+        private final Callable<V> mWork;
+
+        NetworkTask(final ResultFuture<V> future, final Callable<V> work) {
+            mFuture = future;
+            mWork = work;
+        }
+
+        @Override
+        public void run() {
+            if (mFuture.isCancelled()) {
+                return;
+            }
+
+            try {
+                mFuture.setResult(mWork.call());
+            } catch (Throwable e) {
+                mFuture.setError(e);
+            }
+        }
+
+        void reject(final RejectedExecutionException e) {
+            mFuture.setError(e);
+        }
+    }
+
+    private RequestExecutor(final AuthenticationSettings settings) {
+        mSerial = settings.getSerialRequestExecution();
+        if (mSerial) {
+            Logger.v(TAG, "Requests will be executed serially");
+            mFastLane = Executors.newSingleThreadExecutor();
+            mNetworkPool = mFastLane;
+            mMaxRequestsPerAuthority = Integer.MAX_VALUE;
+            return;
+        }
+
+        mFastLane = Executors.newSingleThreadExecutor();
+        if (settings.getRequestExecutor() != null) {
+            mNetworkPool = settings.getRequestExecutor();
+        } else {
+            int poolSize = settings.getMaxConcurrentRequests();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            mNetworkPool = pool;
+        }
+
+        mMaxRequestsPerAuthority = settings.getMaxConcurrentRequestsPerAuthority();
+        Logger.v(TAG, "Requests will be executed concurrently. Max requests per authority:"
+                + mMaxRequestsPerAuthority);
+    }
+
+    /**
+     * Gets executor created from {@link AuthenticationSettings} at the first
+     * usage.
+     *
+     * @return shared executor
+     */
+    static synchronized RequestExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new RequestExecutor(AuthenticationSettings.INSTANCE);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Submits network bound work.
+     *
+     * @param authority authority to limit parallel requests
+     * @param work network bound work
+     * @return Future for the work
+     */
+    <V> Future<V> submit(final String authority, final Callable<V> work) {
+        ResultFuture<V> future = new ResultFuture<V>();
+        executeNetwork(authority, new NetworkTask<V>(future, work));
+        return future;
+    }
+
+    /**
+     * Runs cacheLookup on the fast lane. If it returns null, networkWork is
+     * scheduled with the authority limits. Serial mode runs both in the same
+     * task.
+     *
+     * @param authority authority to limit parallel requests
+     * @param cacheLookup work that does not need network. It returns null if
+     *            network work is needed.
+     * @param networkWork network bound work
+     * @return Future for the result of either work
+     */
+    <V> Future<V> submit(final String authority, final Callable<V> cacheLookup,
+            final Callable<V> networkWork) {
+        final ResultFuture<V> future = new ResultFuture<V>();
+        final NetworkTask<V> network = new NetworkTask<V>(future, networkWork);
+
+        mFastLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    return;
+                }
+
+                try {
+                    V result = cacheLookup.call();
+                    if (result != null) {
+                        future.setResult(result);
+                        return;
+                    }
+                } catch (Throwable e) {
+                    future.setError(e);
+                    return;
+                }
+
+                if (mSerial) {
+                    network.run();
+                } else {
+                    executeNetwork(authority, network);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Submits work that does not need network on the fast lane.
+     *
+     * @param work local work such as cache reads
+     * @return Future for the work
+     */
+    <V> Future<V> submitLocal(final Callable<V> work) {
+        FutureTask<V> task = new FutureTask<V>(work);
+        mFastLane.execute(task);
+        return task;
+    }
+
+    private void executeNetwork(final String authority, final NetworkTask<?> work) {
+        final String laneKey = authority == null ? "" : authority.toLowerCase(Locale.US);
+        synchronized (mAuthorityLanes) {
+            AuthorityLane lane = mAuthorityLanes.get(laneKey);
+            if (lane == null) {
+                lane = new AuthorityLane();
+                mAuthorityLanes.put(laneKey, lane);
+            }
+
+            if (lane.mRunning >= mMaxRequestsPerAuthority) {
+                Logger.v(TAG, "Request is waiting for authority limit");
+                lane.mPending.add(work);
+                return;
+            }
+
+            lane.mRunning++;
+        }
+
+        start(laneKey, work);
+    }
+
+    /**
+     * Starts work that holds a slot of the lane. Executor given by the app may
+     * reject it. Rejected work gets the error and its slot is released.
+     */
+    private void start(final String laneKey, final NetworkTask<?> work) {
+        try {
+            mNetworkPool.execute(wrap(laneKey, work));
+        } catch (RejectedExecutionException e) {
+            Logger.w(TAG, "Network work is rejected by the executor", e.getMessage(), null);
+            work.reject(e);
+            onComplete(laneKey);
+        }
+    }
+
+    private Runnable wrap(final String laneKey, final Runnable work) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } finally {
+                    onComplete(laneKey);
+                }
+            }
+        };
+    }
+
+    private void onComplete(final String laneKey) {
+        NetworkTask<?> next = null;
+        synchronized (mAuthorityLanes) {
+            AuthorityLane lane = mAuthorityLanes.get(laneKey);
+            if (lane == null) {
+                return;
+            }
+
+            next = lane.mPending.poll();
+            if (next == null) {
+                lane.mRunning--;
+                if (lane.mRunning == 0) {
+                    mAuthorityLanes.remove(laneKey);
+                }
+            }
+        }
+
+        if (next != null) {
+            start(laneKey, next);
+        }
+    }
+}
@@ -47,6 +47,7 @@ import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -129,7 +130,40 @@ public class StorageHelper {
 
     private static SecretKey sKey = null, sMacKey = null;
 
-    private static SecretKey sSecretKeyFromAndroidKeyStore = null;
+    private static volatile SecretKey sSecretKeyFromAndroidKeyStore = null;
+
+    /**
+     * Cipher and Mac are not thread safe. Each thread keeps its own instances
+     * to skip provider lookup for each item.
+     */
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>();
+
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>();
+
+    /**
+     * Keys for decryption by key version.
+     */
+    private static final HashMap<String, VersionKeys> VERSION_KEYS = new HashMap<String, VersionKeys>();
+
+    /**
+     * Secret key and derived mac key for a key version.
+     */
+    private static final class VersionKeys {
+        private final SecretKey mKey;
+
+        private final SecretKey mMacKey;
+
+        /**
+         * Raw key from settings that user defined key is created from.
+         */
+        private final byte[] mRawKey;
+
+        VersionKeys(SecretKey key, SecretKey macKey, byte[] rawKey) {
+            mKey = key;
+            mMacKey = macKey;
+            mRawKey = rawKey;
+        }
+    }
 
     public StorageHelper(Context ctx) throws NoSuchAlgorithmException, NoSuchPaddingException {
         mContext = ctx;
@@ -222,6 +256,69 @@ public class StorageHelper {
         throw new IllegalArgumentException("keyVersion");
     }
 
+    /**
+     * Gets key and mac key for the version. Keys are derived again only if
+     * the secret key in settings or AndroidKeyStore is changed.
+     */
+    private VersionKeys getKeysForVersion(String keyVersion) throws NoSuchAlgorithmException,
+            InvalidKeySpecException, NoSuchPaddingException, KeyStoreException,
+            CertificateException, NoSuchProviderException, InvalidAlgorithmParameterException,
+            UnrecoverableEntryException, IOException {
+        byte[] rawKey = keyVersion.equals(VERSION_USER_DEFINED) ? AuthenticationSettings.INSTANCE
+                .getSecretKeyData() : null;
+        VersionKeys keys;
+        synchronized (VERSION_KEYS) {
+            keys = VERSION_KEYS.get(keyVersion);
+        }
+
+        if (keys != null) {
+            if (rawKey != null ? keys.mRawKey == rawKey
+                    : keys.mKey == sSecretKeyFromAndroidKeyStore) {
+                return keys;
+            }
+        }
+
+        SecretKey key = getKeyForVersion(keyVersion);
+        keys = new VersionKeys(key, getMacKey(key), rawKey);
+        synchronized (VERSION_KEYS) {
+            VERSION_KEYS.put(keyVersion, keys);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Loads the encryption key and the keys to decrypt items written with the
+     * same version, so that the first cache access does not wait for them.
+     * 
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    void loadKeys() throws GeneralSecurityException, IOException {
+        loadSecretKeyForAPI();
+        getKeysForVersion(sBlobVersion);
+    }
+
+    private static Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            CIPHER.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    private static Mac getMac() throws NoSuchAlgorithmException {
+        Mac mac = MAC.get();
+        if (mac == null) {
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            MAC.set(mac);
+        }
+
+        return mac;
+    }
+
     private SecretKey getSecretKey(byte[] rawBytes) {
         if (rawBytes != null)
             return new SecretKeySpec(rawBytes, KEYSPEC_ALGORITHM);
@@ -282,9 +379,9 @@ public class StorageHelper {
         mRandom.nextBytes(iv);
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
-        // Set to encrypt mode
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        // Set to encrypt mode. Init resets the state of the cached instances.
+        Cipher cipher = getCipher();
+        Mac mac = getMac();
         cipher.init(Cipher.ENCRYPT_MODE, sKey, ivSpec);
 
         byte[] encrypted = cipher.doFinal(bytes);
@@ -348,8 +445,9 @@ public class StorageHelper {
         String keyVersionCheck = new String(bytes, 0, KEY_VERSION_BLOB_LENGTH,
                 AuthenticationConstants.ENCODING_UTF8);
 
-        SecretKey versionKey = getKeyForVersion(keyVersionCheck);
-        SecretKey versionMacKey = getMacKey(versionKey);
+        VersionKeys keys = getKeysForVersion(keyVersionCheck);
+        SecretKey versionKey = keys.mKey;
+        SecretKey versionMacKey = keys.mMacKey;
 
         // byte input array: encryptedData-iv-macDigest
         int ivIndex = bytes.length - DATA_KEY_LENGTH - MAC_LENGTH;
@@ -363,8 +461,8 @@ public class StorageHelper {
         // Calculate digest again and compare to the appended value
         // incoming message: version+encryptedData+IV+Digest
         // Digest of EncryptedData+IV excluding key Version and digest
-        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        Cipher cipher = getCipher();
+        Mac mac = getMac();
         mac.init(versionMacKey);
         mac.update(bytes, 0, macIndex);
         byte[] macDigest = mac.doFinal();
@@ -0,0 +1,359 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary format for {@link FileTokenCacheStore}. Snapshot file starts with a
+ * magic number, a version byte and a generation, followed by the number of
+ * items and length prefixed records. Journal file starts with its own magic
+ * number, a version byte and the generation of the snapshot it applies to,
+ * followed by set and remove records. Snapshot files written with Java
+ * serialization by earlier versions are still read.
+ */
+final class TokenCacheFileFormat {
+
+    private static final String TAG = "TokenCacheFileFormat";
+
+    /**
+     * "ADAL" in ASCII.
+     */
+    private static final int MAGIC = 0x4144414C;
+
+    /**
+     * "ADLJ" in ASCII.
+     */
+    private static final int JOURNAL_MAGIC = 0x41444C4A;
+
+    /**
+     * Version 1 does not have generation.
+     */
+    private static final byte VERSION_WITHOUT_GENERATION = 1;
+
+    static final byte VERSION = 2;
+
+    static final byte JOURNAL_SET = 1;
+
+    static final byte JOURNAL_REMOVE = 2;
+
+    static final byte JOURNAL_CLEAR = 3;
+
+    /**
+     * Java serialization stream magic written by earlier versions.
+     */
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private static final int NULL_LENGTH = -1;
+
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private static final int BITS_PER_BYTE = 8;
+
+    private static final int MAGIC_LENGTH = Integer.SIZE / BITS_PER_BYTE;
+
+    /**
+     * Items loaded from a snapshot file.
+     */
+    static final class Snapshot {
+        final HashMap<String, TokenCacheItem> mItems;
+
+        final long mGeneration;
+
+        /**
+         * True if the file is in an earlier format and needs to be written
+         * again.
+         */
+        final boolean mOutdated;
+
+        Snapshot(final HashMap<String, TokenCacheItem> items, final long generation,
+                final boolean outdated) {
+            mItems = items;
+            mGeneration = generation;
+            mOutdated = outdated;
+        }
+    }
+
+    private TokenCacheFileFormat() {
+    }
+
+    /**
+     * Writes snapshot with the header.
+     *
+     * @param out output stream. Caller should buffer and close it.
+     * @param generation generation of the snapshot
+     * @param items items to write
+     * @throws IOException
+     */
+    static void write(DataOutputStream out, long generation, Map<String, TokenCacheItem> items)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(generation);
+        out.writeInt(items.size());
+        for (Map.Entry<String, TokenCacheItem> entry : items.entrySet()) {
+            writeString(out, entry.getKey());
+            writeItem(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads snapshot from the file in one read. Files written with Java
+     * serialization are migrated.
+     *
+     * @param file snapshot file
+     * @return snapshot in the file. Null if file format is not recognized.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    static Snapshot read(File file) throws IOException, ClassNotFoundException {
+        byte[] data = readFully(file);
+        if (data.length > MAGIC_LENGTH && readMagic(data) == MAGIC) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.readInt();
+            byte version = in.readByte();
+            if (version != VERSION && version != VERSION_WITHOUT_GENERATION) {
+                Logger.w(TAG, "Cache file version is not supported:" + version, "",
+                        ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+                return null;
+            }
+
+            long generation = version == VERSION ? in.readLong() : 0;
+            int count = in.readInt();
+            HashMap<String, TokenCacheItem> items = new HashMap<String, TokenCacheItem>(count);
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                items.put(key, readItem(in));
+            }
+
+            return new Snapshot(items, generation, version != VERSION);
+        }
+
+        if (data.length >= 2
+                && ((data[0] & BYTE_MASK) << BITS_PER_BYTE | (data[1] & BYTE_MASK)) == JAVA_SERIALIZATION_MAGIC) {
+            Logger.v(TAG, "Cache file is written by earlier version. It will be migrated.");
+            ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(data));
+            try {
+                Object cacheObj = objectStream.readObject();
+                if (cacheObj instanceof MemoryTokenCacheStore) {
+                    return new Snapshot(((MemoryTokenCacheStore)cacheObj).getAllItems(), 0, true);
+                }
+            } finally {
+                objectStream.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes journal header. It is written once when the journal is created.
+     *
+     * @param out output stream
+     * @param generation generation of the snapshot that journal applies to
+     * @throws IOException
+     */
+    static void writeJournalHeader(DataOutputStream out, long generation) throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(generation);
+    }
+
+    /**
+     * Writes one journal record.
+     *
+     * @param out output stream
+     * @param op one of JOURNAL_SET, JOURNAL_REMOVE, JOURNAL_CLEAR
+     * @param key cache key. Not used for clear.
+     * @param item item for set
+     * @throws IOException
+     */
+    static void writeJournalRecord(DataOutputStream out, byte op, String key, TokenCacheItem item)
+            throws IOException {
+        out.writeByte(op);
+        if (op == JOURNAL_CLEAR) {
+            return;
+        }
+
+        writeString(out, key);
+        if (op == JOURNAL_SET) {
+            writeItem(out, item);
+        }
+    }
+
+    /**
+     * Applies journal records to the items loaded from snapshot. Records
+     * after an incomplete or unknown record are not applied.
+     *
+     * @param file journal file
+     * @param generation generation of the loaded snapshot
+     * @param items items to update
+     * @return false if journal is not complete or it does not belong to the
+     *         snapshot. Store should be compacted in that case.
+     * @throws IOException
+     */
+    static boolean replayJournal(File file, long generation, Map<String, TokenCacheItem> items)
+            throws IOException {
+        byte[] data = readFully(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (data.length <= MAGIC_LENGTH || in.readInt() != JOURNAL_MAGIC
+                    || in.readByte() != VERSION || in.readLong() != generation) {
+                Logger.v(TAG, "Journal does not belong to the snapshot. It is ignored.");
+                return false;
+            }
+
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                if (op == JOURNAL_CLEAR) {
+                    items.clear();
+                } else if (op == JOURNAL_SET) {
+                    String key = readString(in);
+                    items.put(key, readItem(in));
+                } else if (op == JOURNAL_REMOVE) {
+                    items.remove(readString(in));
+                } else {
+                    Logger.w(TAG, "Unknown journal record:" + op, "",
+                            ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+                    return false;
+                }
+            }
+        } catch (EOFException ex) {
+            Logger.w(TAG, "Journal has an incomplete record", "",
+                    ADALError.DEVICE_FILE_CACHE_FORMAT_IS_WRONG);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static int readMagic(byte[] data) {
+        int magic = 0;
+        for (int i = 0; i < MAGIC_LENGTH; i++) {
+            magic = (magic << BITS_PER_BYTE) | (data[i] & BYTE_MASK);
+        }
+
+        return magic;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Cache file is too large");
+        }
+
+        byte[] data = new byte[(int)length];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = inputStream.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of cache file");
+                }
+                offset += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return data;
+    }
+
+    static void writeItem(DataOutputStream out, TokenCacheItem item) throws IOException {
+        writeString(out, item.getResource());
+        writeString(out, item.getAuthority());
+        writeString(out, item.getClientId());
+        writeString(out, item.getAccessToken());
+        writeString(out, item.getRefreshToken());
+        writeString(out, item.getRawIdToken());
+        writeString(out, item.getTenantId());
+        out.writeLong(item.getExpiresOn() != null ? item.getExpiresOn().getTime() : NULL_DATE);
+        out.writeBoolean(item.getIsMultiResourceRefreshToken());
+
+        UserInfo userInfo = item.getUserInfo();
+        out.writeBoolean(userInfo != null);
+        if (userInfo != null) {
+            writeString(out, userInfo.getUserId());
+            writeString(out, userInfo.getGivenName());
+            writeString(out, userInfo.getFamilyName());
+            writeString(out, userInfo.getIdentityProvider());
+            writeString(out, userInfo.getDisplayableId());
+        }
+    }
+
+    static TokenCacheItem readItem(DataInputStream in) throws IOException {
+        TokenCacheItem item = new TokenCacheItem();
+        item.setResource(readString(in));
+        item.setAuthority(readString(in));
+        item.setClientId(readString(in));
+        item.setAccessToken(readString(in));
+        item.setRefreshToken(readString(in));
+        item.setRawIdToken(readString(in));
+        item.setTenantId(readString(in));
+        long expiresOn = in.readLong();
+        item.setExpiresOn(expiresOn != NULL_DATE ? new Date(expiresOn) : null);
+        item.setIsMultiResourceRefreshToken(in.readBoolean());
+
+        if (in.readBoolean()) {
+            item.setUserInfo(new UserInfo(readString(in), readString(in), readString(in),
+                    readString(in), readString(in)));
+        }
+
+        return item;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(AuthenticationConstants.ENCODING_UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+
+        if (length < 0) {
+            throw new IOException("Invalid string length in cache file");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, AuthenticationConstants.ENCODING_UTF8);
+    }
+}
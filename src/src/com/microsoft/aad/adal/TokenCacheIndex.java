@@ -0,0 +1,214 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes over cache keys by user, resource and expiration time.
+ * Only the indexed fields are kept, so tokens are not held in memory. Callers
+ * synchronize on the index.
+ */
+final class TokenCacheIndex {
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * Keys by lower case user id.
+     */
+    private final HashMap<String, HashSet<String>> mByUser = new HashMap<String, HashSet<String>>();
+
+    private final HashMap<String, HashSet<String>> mByResource = new HashMap<String, HashSet<String>>();
+
+    private final TreeMap<Long, HashSet<String>> mByExpiry = new TreeMap<Long, HashSet<String>>();
+
+    /**
+     * Keys changed outside of this store. They are indexed again before the
+     * next query.
+     */
+    private final HashSet<String> mDirtyKeys = new HashSet<String>();
+
+    private boolean mLoaded = false;
+
+    /**
+     * Indexed fields of one item.
+     */
+    private static final class Entry {
+        private final String mEncrypted;
+
+        private final String mUserId;
+
+        private final String mResource;
+
+        private final Long mExpiresOn;
+
+        Entry(final String encrypted, final TokenCacheItem item) {
+            mEncrypted = encrypted;
+            mUserId = item.getUserInfo() != null ? item.getUserInfo().getUserId() : null;
+            mResource = item.getResource();
+            mExpiresOn = item.getExpiresOn() != null ? item.getExpiresOn().getTime() : null;
+        }
+    }
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    void setLoaded(boolean loaded) {
+        mLoaded = loaded;
+    }
+
+    /**
+     * Gets the encrypted value that the entry is indexed from.
+     *
+     * @param key cache key
+     * @return encrypted value or null if key is not indexed
+     */
+    String getEncrypted(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.mEncrypted : null;
+    }
+
+    void put(String key, String encrypted, TokenCacheItem item) {
+        remove(key);
+        Entry entry = new Entry(encrypted, item);
+        mEntries.put(key, entry);
+        if (entry.mUserId != null) {
+            add(mByUser, entry.mUserId.toLowerCase(Locale.US), key);
+        }
+
+        if (entry.mResource != null) {
+            add(mByResource, entry.mResource, key);
+        }
+
+        if (entry.mExpiresOn != null) {
+            add(mByExpiry, entry.mExpiresOn, key);
+        }
+    }
+
+    void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.mUserId != null) {
+            discard(mByUser, entry.mUserId.toLowerCase(Locale.US), key);
+        }
+
+        if (entry.mResource != null) {
+            discard(mByResource, entry.mResource, key);
+        }
+
+        if (entry.mExpiresOn != null) {
+            discard(mByExpiry, entry.mExpiresOn, key);
+        }
+    }
+
+    void clear() {
+        mEntries.clear();
+        mByUser.clear();
+        mByResource.clear();
+        mByExpiry.clear();
+        mDirtyKeys.clear();
+    }
+
+    void markDirty(String key) {
+        mDirtyKeys.add(key);
+    }
+
+    /**
+     * Gets and clears keys changed outside of this store.
+     *
+     * @return dirty keys
+     */
+    ArrayList<String> takeDirtyKeys() {
+        ArrayList<String> keys = new ArrayList<String>(mDirtyKeys);
+        mDirtyKeys.clear();
+        return keys;
+    }
+
+    ArrayList<String> getKeysForUser(String userId) {
+        if (userId == null) {
+            return new ArrayList<String>();
+        }
+
+        return copy(mByUser.get(userId.toLowerCase(Locale.US)));
+    }
+
+    ArrayList<String> getKeysForResource(String resource) {
+        return copy(mByResource.get(resource));
+    }
+
+    /**
+     * Gets keys of the items that expire before the given time.
+     *
+     * @param time time in milliseconds
+     * @return keys
+     */
+    ArrayList<String> getKeysExpiringBefore(long time) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (HashSet<String> expiring : mByExpiry.headMap(time).values()) {
+            keys.addAll(expiring);
+        }
+
+        return keys;
+    }
+
+    HashSet<String> getUsers() {
+        HashSet<String> users = new HashSet<String>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mUserId != null) {
+                users.add(entry.mUserId);
+            }
+        }
+
+        return users;
+    }
+
+    private static <K> void add(Map<K, HashSet<String>> index, K value, String key) {
+        HashSet<String> keys = index.get(value);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            index.put(value, keys);
+        }
+
+        keys.add(key);
+    }
+
+    private static <K> void discard(Map<K, HashSet<String>> index, K value, String key) {
+        HashSet<String> keys = index.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    private static ArrayList<String> copy(Collection<String> keys) {
+        return keys != null ? new ArrayList<String>(keys) : new ArrayList<String>();
+    }
+}
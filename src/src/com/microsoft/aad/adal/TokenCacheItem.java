@@ -65,6 +65,24 @@ public class TokenCacheItem implements Serializable {
 
     }
 
+    /**
+     * Copies the fields of the given item.
+     *
+     * @param item source item
+     */
+    TokenCacheItem(final TokenCacheItem item) {
+        mUserInfo = item.mUserInfo;
+        mResource = item.mResource;
+        mAuthority = item.mAuthority;
+        mClientId = item.mClientId;
+        mAccessToken = item.mAccessToken;
+        mRefreshtoken = item.mRefreshtoken;
+        mRawIdToken = item.mRawIdToken;
+        mExpiresOn = item.mExpiresOn != null ? new Date(item.mExpiresOn.getTime()) : null;
+        mIsMultiResourceRefreshToken = item.mIsMultiResourceRefreshToken;
+        mTenantId = item.mTenantId;
+    }
+
     TokenCacheItem(final AuthenticationRequest request, final AuthenticationResult result,
             boolean storeMultiResourceRefreshToken) {
         if (request != null) {
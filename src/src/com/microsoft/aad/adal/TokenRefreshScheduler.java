@@ -0,0 +1,146 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules refresh of recently used tokens before they are considered
+ * expired. Each token is refreshed once after it is used, so tokens that are
+ * not used anymore are not refreshed again. Schedules are shared by all
+ * contexts in the process and keyed by the cache key.
+ */
+final class TokenRefreshScheduler {
+
+    private static final String TAG = "TokenRefreshScheduler";
+
+    private static final int MAX_SCHEDULED_REFRESH = 100;
+
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    private static ScheduledExecutorService sScheduler;
+
+    private static TokenRefreshScheduler sInstance;
+
+    private final HashMap<String, ScheduledFuture<?>> mScheduled = new HashMap<String, ScheduledFuture<?>>();
+
+    /**
+     * Refresh work that removes its own schedule when it starts.
+     */
+    private final class RefreshTask implements Runnable {
+        private final String mKey;
+
+        private final Runnable mRefresh;
+
+        /**
+         * Set while holding the lock on mScheduled, before the task can take
+         * it.
+         */
+        private ScheduledFuture<?> mFuture;
+
+        RefreshTask(final String key, final Runnable refresh) {
+            mKey = key;
+            mRefresh = refresh;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mScheduled) {
+                // Schedule could be replaced while this task is starting
+                if (mScheduled.get(mKey) == mFuture) {
+                    mScheduled.remove(mKey);
+                }
+            }
+
+            mRefresh.run();
+        }
+    }
+
+    private TokenRefreshScheduler() {
+    }
+
+    /**
+     * Gets scheduler that is shared in the process.
+     *
+     * @return shared scheduler
+     */
+    static synchronized TokenRefreshScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TokenRefreshScheduler();
+        }
+
+        return sInstance;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        return sScheduler;
+    }
+
+    /**
+     * Schedules refresh for the key. Refresh is run the configured window
+     * before the expiration buffer marks the token as expired. Previous
+     * schedule for the key is replaced, so a token used from several contexts
+     * is refreshed once.
+     *
+     * @param key cache key for the token
+     * @param expiresOn expiration time of the access token
+     * @param refresh refresh work to run
+     */
+    void schedule(final String key, final Date expiresOn, final Runnable refresh) {
+        int window = AuthenticationSettings.INSTANCE.getBackgroundRefreshWindow();
+        if (window <= 0 || key == null || expiresOn == null) {
+            return;
+        }
+
+        long expiredAt = expiresOn.getTime()
+                - (long)AuthenticationSettings.INSTANCE.getExpirationBuffer() * MILLIS_PER_SECOND;
+        long now = System.currentTimeMillis();
+        if (expiredAt <= now) {
+            // Foreground request will refresh it
+            return;
+        }
+
+        long delay = Math.max(0, expiredAt - (long)window * MILLIS_PER_SECOND - now);
+        synchronized (mScheduled) {
+            ScheduledFuture<?> previous = mScheduled.remove(key);
+            if (previous != null) {
+                previous.cancel(false);
+            } else if (mScheduled.size() >= MAX_SCHEDULED_REFRESH) {
+                Logger.v(TAG, "Background refresh is not scheduled. Limit is reached.");
+                return;
+            }
+
+            RefreshTask task = new RefreshTask(key, refresh);
+            task.mFuture = getScheduler().schedule(task, delay, TimeUnit.MILLISECONDS);
+            mScheduled.put(key, task.mFuture);
+        }
+
+        Logger.v(TAG, "Background refresh is scheduled in " + delay / MILLIS_PER_SECOND
+                + " seconds");
+    }
+}
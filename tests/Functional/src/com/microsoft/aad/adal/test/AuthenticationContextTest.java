@@ -32,10 +32,14 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
@@ -75,7 +79,9 @@ import com.microsoft.aad.adal.HttpWebResponse;
 import com.microsoft.aad.adal.IConnectionService;
 import com.microsoft.aad.adal.IDiscovery;
 import com.microsoft.aad.adal.ITokenCacheStore;
+import com.microsoft.aad.adal.IWebRequestHandler;
 import com.microsoft.aad.adal.Logger;
+import com.microsoft.aad.adal.MemoryTokenCacheStore;
 import com.microsoft.aad.adal.PromptBehavior;
 import com.microsoft.aad.adal.TokenCacheItem;
 import com.microsoft.aad.adal.UserInfo;
@@ -1043,6 +1049,158 @@ public class AuthenticationContextTest extends AndroidTestCase {
         clearCache(context);
     }
        
+    @SmallTest
+    public void testRefreshToken_ConcurrentSameKeySendsOneRequest() throws NoSuchFieldException,
+            IllegalAccessException, InterruptedException {
+        CountingCache cache = new CountingCache();
+        addExpiredItemToCache(cache, "resourceA", false);
+        final AuthenticationContext context = getAuthenticationContext(new FileMockContext(
+                getContext()), VALID_AUTHORITY, false, cache);
+        setConnectionAvailable(context, true);
+        BlockingWebRequestHandler webRequest = new BlockingWebRequestHandler();
+        ReflectionUtils.setFieldValue(context, "mWebRequest", webRequest);
+        cache.mSetCounts.clear();
+
+        AuthenticationResult[] results = acquireTokenSilentConcurrently(context, webRequest,
+                "resourceA", "resourceA");
+
+        assertEquals("One refresh request is sent", 1, webRequest.mRequestCount.get());
+        assertEquals("First result", "Token_resourceA", results[0].getAccessToken());
+        assertEquals("Shared result", "Token_resourceA", results[1].getAccessToken());
+
+        // Only the request that sent the refresh token writes the result
+        assertFalse("Result is written to the cache", cache.mSetCounts.isEmpty());
+        for (Integer count : cache.mSetCounts.values()) {
+            assertEquals("Each key is written once", 1, count.intValue());
+        }
+    }
+
+    @SmallTest
+    public void testRefreshToken_ConcurrentMultiResourceDifferentResources()
+            throws NoSuchFieldException, IllegalAccessException, InterruptedException {
+        CountingCache cache = new CountingCache();
+        addExpiredItemToCache(cache, "resourceA", true);
+        final AuthenticationContext context = getAuthenticationContext(new FileMockContext(
+                getContext()), VALID_AUTHORITY, false, cache);
+        setConnectionAvailable(context, true);
+        BlockingWebRequestHandler webRequest = new BlockingWebRequestHandler();
+        ReflectionUtils.setFieldValue(context, "mWebRequest", webRequest);
+
+        AuthenticationResult[] results = acquireTokenSilentConcurrently(context, webRequest,
+                "resourceA", "resourceB");
+
+        assertEquals("Each resource sends its own request", 2, webRequest.mRequestCount.get());
+        assertEquals("Token for resource A", "Token_resourceA", results[0].getAccessToken());
+        assertEquals("Token for resource B", "Token_resourceB", results[1].getAccessToken());
+    }
+
+    /**
+     * Runs silent requests at the same time. Network response is released
+     * after all requests are started.
+     */
+    private AuthenticationResult[] acquireTokenSilentConcurrently(
+            final AuthenticationContext context, final BlockingWebRequestHandler webRequest,
+            final String... resources) throws InterruptedException {
+        final AuthenticationResult[] results = new AuthenticationResult[resources.length];
+        Thread[] threads = new Thread[resources.length];
+        for (int i = 0; i < resources.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = context.acquireTokenSilentSync(resources[index],
+                            "clientId", TEST_IDTOKEN_USERID);
+                }
+            });
+            threads[i].start();
+        }
+
+        // Requests wait for the same response or send their own
+        Thread.sleep(500);
+        webRequest.mRelease.countDown();
+        for (Thread thread : threads) {
+            thread.join(CONTEXT_REQUEST_TIME_OUT);
+        }
+
+        for (AuthenticationResult result : results) {
+            assertNotNull("Result is returned", result);
+        }
+
+        return results;
+    }
+
+    private void addExpiredItemToCache(ITokenCacheStore cache, String resource,
+            boolean isMultiResource) {
+        Calendar expiredTime = new GregorianCalendar();
+        expiredTime.add(Calendar.MINUTE, -60);
+        TokenCacheItem refreshItem = new TokenCacheItem();
+        refreshItem.setAuthority(VALID_AUTHORITY);
+        refreshItem.setResource(resource);
+        refreshItem.setClientId("clientId");
+        refreshItem.setAccessToken("accessToken");
+        refreshItem.setRefreshToken("refreshToken=");
+        refreshItem.setExpiresOn(expiredTime.getTime());
+        refreshItem.setIsMultiResourceRefreshToken(isMultiResource);
+        refreshItem.setUserInfo(new UserInfo(TEST_IDTOKEN_USERID, "givenName", "familyName",
+                "identityProvider", TEST_IDTOKEN_UPN));
+        cache.setItem(CacheKey.createCacheKey(VALID_AUTHORITY, resource, "clientId",
+                isMultiResource, TEST_IDTOKEN_USERID), refreshItem);
+    }
+
+    /**
+     * Counts writes by key.
+     */
+    class CountingCache extends MemoryTokenCacheStore {
+        private static final long serialVersionUID = 1L;
+
+        final HashMap<String, Integer> mSetCounts = new HashMap<String, Integer>();
+
+        @Override
+        public void setItem(String key, TokenCacheItem item) {
+            synchronized (mSetCounts) {
+                Integer count = mSetCounts.get(key);
+                mSetCounts.put(key, count == null ? 1 : count + 1);
+            }
+
+            super.setItem(key, item);
+        }
+    }
+
+    /**
+     * Returns token for the requested resource after it is released.
+     */
+    class BlockingWebRequestHandler implements IWebRequestHandler {
+        final AtomicInteger mRequestCount = new AtomicInteger();
+
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public HttpWebResponse sendGet(URL url, HashMap<String, String> headers) {
+            return null;
+        }
+
+        @Override
+        public HttpWebResponse sendPost(URL url, HashMap<String, String> headers,
+                byte[] content, String contentType) {
+            mRequestCount.incrementAndGet();
+            try {
+                mRelease.await(CONTEXT_REQUEST_TIME_OUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            String body = new String(content, Charset.forName("UTF-8"));
+            String resource = body.contains("resource=resourceB") ? "resourceB" : "resourceA";
+            String json = "{\"access_token\":\"Token_" + resource
+                    + "\",\"token_type\":\"Bearer\",\"expires_in\":\"3600\",\"refresh_token\":\"refreshNew\",\"scope\":\"*\"}";
+            return new HttpWebResponse(200, json.getBytes(Charset.forName("UTF-8")), null);
+        }
+
+        @Override
+        public void setRequestCorrelationId(UUID correlationId) {
+        }
+    }
+
     @SmallTest
     public void testScenario_UserId_LoginHint_Use() throws InterruptedException,
             IllegalArgumentException, NoSuchFieldException, IllegalAccessException,
@@ -1273,6 +1431,52 @@ public class AuthenticationContextTest extends AndroidTestCase {
         clearCache(context);
     }
 
+    public void testPrewarm() throws NoSuchAlgorithmException, NoSuchPaddingException,
+            NoSuchFieldException, IllegalAccessException, InterruptedException,
+            ExecutionException, TimeoutException {
+        FileMockContext mockContext = new FileMockContext(getContext());
+        ITokenCacheStore mockCache = getCacheForRefreshToken(TEST_IDTOKEN_USERID, TEST_IDTOKEN_UPN);
+        final AuthenticationContext context = getAuthenticationContext(mockContext,
+                VALID_AUTHORITY, true, mockCache);
+        MockDiscovery discovery = new MockDiscovery(true);
+        ReflectionUtils.setFieldValue(context, "mDiscovery", discovery);
+
+        try {
+            context.prewarm(null, TEST_IDTOKEN_USERID, "resource");
+            Assert.fail("Expected argument exception");
+        } catch (IllegalArgumentException e) {
+            assertTrue("ClientId is missing", e.getMessage().contains("clientId"));
+        }
+
+        Future<Void> prewarm = context.prewarm("clientid", TEST_IDTOKEN_USERID, "resource");
+        prewarm.get(CONTEXT_REQUEST_TIME_OUT, TimeUnit.MILLISECONDS);
+
+        assertTrue("Prewarm is done", prewarm.isDone());
+        assertNotNull("Authority is validated", discovery.getAuthorizationUrl());
+        assertTrue("Validation result is kept",
+                (Boolean)ReflectionUtils.getFieldValue(context, "mAuthorityValidated"));
+        clearCache(context);
+    }
+
+    public void testPrewarm_InvalidAuthority() throws NoSuchAlgorithmException,
+            NoSuchPaddingException, NoSuchFieldException, IllegalAccessException,
+            InterruptedException, ExecutionException, TimeoutException {
+        FileMockContext mockContext = new FileMockContext(getContext());
+        ITokenCacheStore mockCache = getCacheForRefreshToken(TEST_IDTOKEN_USERID, TEST_IDTOKEN_UPN);
+        final AuthenticationContext context = getAuthenticationContext(mockContext,
+                VALID_AUTHORITY, true, mockCache);
+        MockDiscovery discovery = new MockDiscovery(false);
+        ReflectionUtils.setFieldValue(context, "mDiscovery", discovery);
+
+        Future<Void> prewarm = context.prewarm("clientid", TEST_IDTOKEN_USERID, "resource");
+        prewarm.get(CONTEXT_REQUEST_TIME_OUT, TimeUnit.MILLISECONDS);
+
+        assertNotNull("Authority is queried", discovery.getAuthorizationUrl());
+        assertFalse("Authority is not marked as validated",
+                (Boolean)ReflectionUtils.getFieldValue(context, "mAuthorityValidated"));
+        clearCache(context);
+    }
+
     public void testAcquireTokenSilentSync_Negative() throws NoSuchAlgorithmException,
             NoSuchPaddingException, NoSuchFieldException, IllegalAccessException,
             InterruptedException, ExecutionException {
@@ -25,14 +25,18 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import junit.framework.Assert;
+import android.app.Activity;
 import android.util.Log;
 
 import com.microsoft.aad.adal.ADALError;
 import com.microsoft.aad.adal.AuthenticationParameters;
 import com.microsoft.aad.adal.AuthenticationParameters.AuthenticationParamCallback;
+import com.microsoft.aad.adal.AuthenticationParameters.AuthenticationParamListCallback;
+import com.microsoft.aad.adal.AuthenticationSettings;
 import com.microsoft.aad.adal.HttpWebResponse;
 import com.microsoft.aad.adal.Logger;
 import com.microsoft.aad.adal.Logger.ILogger;
@@ -42,6 +46,8 @@ public class AuthenticationParamsTests extends AndroidTestHelper {
 
     protected static final String TAG = "AuthenticationParamsTests";
 
+    private static final String PARAMETERS_CACHE_NAME = "com.microsoft.aad.adal.parameters";
+
     public void testGetAuthority() {
         AuthenticationParameters param = new AuthenticationParameters();
         assertTrue("authority should be null", param.getAuthority() == null);
@@ -87,6 +93,25 @@ public class AuthenticationParamsTests extends AndroidTestHelper {
                 });
     }
 
+    public void testCreateFromResponseAuthenticateHeaderDecodesValues() {
+        AuthenticationParameters param = AuthenticationParameters
+                .createFromResponseAuthenticateHeader("Bearer authorization_uri=\"https%3A%2F%2Flogin.windows.net%2Ftenant\", resource_id=\"my+resource\" ");
+        assertEquals("Verify authorization uri", "https://login.windows.net/tenant",
+                param.getAuthority());
+        assertEquals("Verify resource", "my resource", param.getResource());
+
+        // Header without space after the scheme is rejected
+        assertThrowsException(IllegalArgumentException.class,
+                AuthenticationParameters.AUTH_HEADER_INVALID_FORMAT.toLowerCase(), new Runnable() {
+
+                    @Override
+                    public void run() {
+                        AuthenticationParameters
+                                .createFromResponseAuthenticateHeader("Bearerauthorization_uri=\"https://login.windows.net/tenant\"");
+                    }
+                });
+    }
+
     /**
      * test external service deployed at Azure
      */
@@ -288,9 +313,81 @@ public class AuthenticationParamsTests extends AndroidTestHelper {
 
     }
 
+    public void testCreateFromResourceUrlsUsesCache() throws NoSuchFieldException,
+            IllegalAccessException, MalformedURLException {
+        AuthenticationParameters instance = new AuthenticationParameters();
+        Object webRequest = ReflectionUtils.getFieldValue(instance, "sWebRequest");
+        ((Map<?, ?>)ReflectionUtils.getFieldValue(instance, "sParametersCache")).clear();
+        ReflectionUtils.setFieldValue(instance, "sParametersCacheLoaded", true);
+        MockWebRequestHandler mockWebRequest = new MockWebRequestHandler();
+        mockWebRequest.setReturnResponse(new HttpWebResponse(401, null, getHeader(
+                "WWW-Authenticate",
+                "Bearer authorization_uri=\"https://login.windows.net/tenant\", resource_id=\"resource\"")));
+        ReflectionUtils.setFieldValue(instance, "sWebRequest", mockWebRequest);
+        AuthenticationSettings.INSTANCE.setParametersCacheTimeToLive(60);
+
+        try {
+            final List<URL> urls = Arrays.asList(new URL("https://api.contoso.com/items"), new URL(
+                    "https://api.contoso.com/orders"));
+            List<AuthenticationParameters> params = createFromResourceUrls(urls);
+            assertEquals("Both urls have parameters", 2, params.size());
+            for (AuthenticationParameters param : params) {
+                assertEquals("Verify authorization uri", "https://login.windows.net/tenant",
+                        param.getAuthority());
+                assertEquals("Verify resource", "resource", param.getResource());
+            }
+
+            // Same host is not queried again
+            mockWebRequest.setReturnException("offline");
+            params = createFromResourceUrls(Arrays.asList(new URL(
+                    "https://api.contoso.com/customers")));
+            assertNotNull("Parameters are found in the cache", params.get(0));
+            assertEquals("Verify authorization uri", "https://login.windows.net/tenant", params
+                    .get(0).getAuthority());
+
+            // Another scheme is queried
+            params = createFromResourceUrls(Arrays.asList(new URL("http://api.contoso.com/items")));
+            assertNull("Url with another scheme is queried", params.get(0));
+        } finally {
+            AuthenticationSettings.INSTANCE.setParametersCacheTimeToLive(0);
+            ReflectionUtils.setFieldValue(instance, "sWebRequest", webRequest);
+            ((Map<?, ?>)ReflectionUtils.getFieldValue(instance, "sParametersCache")).clear();
+            ReflectionUtils.setFieldValue(instance, "sParametersCacheLoaded", false);
+            getInstrumentation().getTargetContext()
+                    .getSharedPreferences(PARAMETERS_CACHE_NAME, Activity.MODE_PRIVATE).edit()
+                    .clear().commit();
+        }
+    }
+
+    private List<AuthenticationParameters> createFromResourceUrls(final List<URL> urls) {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final TestResponse testResponse = new TestResponse();
+        final AuthenticationParamListCallback callback = new AuthenticationParamListCallback() {
+            @Override
+            public void onCompleted(List<AuthenticationParameters> params,
+                    List<Exception> exceptions) {
+                testResponse.params = params;
+                signal.countDown();
+            }
+        };
+
+        testAsyncNoExceptionUIOption(signal, new Runnable() {
+            @Override
+            public void run() {
+                AuthenticationParameters.createFromResourceUrls(getInstrumentation()
+                        .getTargetContext(), urls, callback);
+            }
+        }, true);
+
+        assertNotNull("Callback is called", testResponse.params);
+        return testResponse.params;
+    }
+
     class TestResponse {
         AuthenticationParameters param;
 
+        List<AuthenticationParameters> params;
+
         Exception exception;
     }
 
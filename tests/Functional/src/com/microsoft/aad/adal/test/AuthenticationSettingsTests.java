@@ -90,4 +90,27 @@ public class AuthenticationSettingsTests extends AndroidTestCase {
 
         AuthenticationSettings.INSTANCE.setReadTimeOut(30000);
     }
+
+    public void testConcurrentRequestSettings() {
+        assertFalse("default is concurrent",
+                AuthenticationSettings.INSTANCE.getSerialRequestExecution());
+        assertEquals("default pool size", 4,
+                AuthenticationSettings.INSTANCE.getMaxConcurrentRequests());
+        assertEquals("default limit per authority", 2,
+                AuthenticationSettings.INSTANCE.getMaxConcurrentRequestsPerAuthority());
+
+        try {
+            AuthenticationSettings.INSTANCE.setMaxConcurrentRequests(0);
+            Assert.fail("not expected");
+        } catch (Exception exc) {
+            assertTrue("argument exception", exc instanceof IllegalArgumentException);
+        }
+
+        try {
+            AuthenticationSettings.INSTANCE.setMaxConcurrentRequestsPerAuthority(0);
+            Assert.fail("not expected");
+        } catch (Exception exc) {
+            assertTrue("argument exception", exc instanceof IllegalArgumentException);
+        }
+    }
 }
@@ -62,6 +62,7 @@ import android.util.Log;
 import com.microsoft.aad.adal.ADALError;
 import com.microsoft.aad.adal.AuthenticationConstants;
 import com.microsoft.aad.adal.AuthenticationException;
+import com.microsoft.aad.adal.AuthenticationMetrics;
 import com.microsoft.aad.adal.AuthenticationResult;
 import com.microsoft.aad.adal.AuthenticationSettings;
 import com.microsoft.aad.adal.PromptBehavior;
@@ -269,6 +270,48 @@ public class BrokerProxyTests extends AndroidTestCase {
         assertEquals("displayableid_upn", result[0].getDisplayableId());
     }
 
+    public void testGetBrokerUsers_CachedUntilAccountsChange() throws Exception {
+        Object brokerProxy = ReflectionUtils.getInstance("com.microsoft.aad.adal.BrokerProxy");
+        Method onAccountsChanged = ReflectionUtils.getStaticTestMethod(brokerProxy.getClass(),
+                "onAccountsChanged");
+        onAccountsChanged.invoke(null);
+        Account[] accounts = getAccountList("cachedUserName",
+                AuthenticationConstants.Broker.BROKER_ACCOUNT_TYPE);
+        AccountManager mockAcctManager = mock(AccountManager.class);
+        AccountManagerFuture<Bundle> mockResult = mock(AccountManagerFuture.class);
+        Bundle testBundle = new Bundle();
+        testBundle.putString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID, "userid");
+        testBundle.putString(AuthenticationConstants.Broker.ACCOUNT_USERINFO_USERID_DISPLAYABLE,
+                "displayableid_upn");
+        when(mockResult.getResult()).thenReturn(testBundle);
+        when(mockAcctManager.getAccountsByType(anyString())).thenReturn(accounts);
+        when(
+                mockAcctManager.updateCredentials(eq(accounts[0]),
+                        eq(AuthenticationConstants.Broker.AUTHTOKEN_TYPE), any(Bundle.class),
+                        (Activity)eq(null), (AccountManagerCallback)eq(null), (Handler)eq(null)))
+                .thenReturn(mockResult);
+        ReflectionUtils.setFieldValue(brokerProxy, "mContext",
+                getMockContext(new Signature(testSignature), AuthenticationConstants.Broker.PACKAGE_NAME,
+                        "com.test", true));
+        ReflectionUtils.setFieldValue(brokerProxy, "mAcctManager", mockAcctManager);
+        Method m = ReflectionUtils.getTestMethod(brokerProxy, "getBrokerUsers");
+
+        m.invoke(brokerProxy);
+        UserInfo[] result = (UserInfo[])m.invoke(brokerProxy);
+        assertEquals("displayableid_upn", result[0].getDisplayableId());
+        Mockito.verify(mockAcctManager, Mockito.times(1)).updateCredentials(
+                any(Account.class), anyString(), any(Bundle.class), (Activity)eq(null),
+                (AccountManagerCallback)eq(null), (Handler)eq(null));
+
+        // Accounts changed broadcast drops cached users
+        onAccountsChanged.invoke(null);
+        m.invoke(brokerProxy);
+        Mockito.verify(mockAcctManager, Mockito.times(2)).updateCredentials(
+                any(Account.class), anyString(), any(Bundle.class), (Activity)eq(null),
+                (AccountManagerCallback)eq(null), (Handler)eq(null));
+        onAccountsChanged.invoke(null);
+    }
+
     public void testCanSwitchToBroker_MissingBrokerPermission() throws IllegalArgumentException,
             ClassNotFoundException, NoSuchMethodException, InstantiationException,
             IllegalAccessException, InvocationTargetException, NoSuchFieldException,
@@ -424,6 +467,72 @@ public class BrokerProxyTests extends AndroidTestCase {
         assertEquals("token is expected", "token123", result.getAccessToken());
     }
 
+    @SuppressWarnings("unchecked")
+    public void testGetAuthTokenInBackground_CachedResult() throws Exception {
+        Object brokerProxy = ReflectionUtils.getInstance("com.microsoft.aad.adal.BrokerProxy");
+        String acctName = "CachedResultAccount";
+        Object authRequest = createAuthenticationRequest("https://login.windows.net/omercantest",
+                "resource", "client", "redirect", acctName, PromptBehavior.Auto, "",
+                UUID.randomUUID());
+        Account[] accts = getAccountList(acctName,
+                AuthenticationConstants.Broker.BROKER_ACCOUNT_TYPE);
+        AccountManager mockAcctManager = mock(AccountManager.class);
+        Bundle expected = new Bundle();
+        expected.putString(AccountManager.KEY_AUTHTOKEN, "token123");
+        AccountManagerFuture<Bundle> mockFuture = mock(AccountManagerFuture.class);
+        when(mockFuture.getResult()).thenReturn(expected);
+        when(mockAcctManager.getAccountsByType(anyString())).thenReturn(accts);
+        when(
+                mockAcctManager.getAuthToken(any(Account.class), anyString(), any(Bundle.class),
+                        eq(false), (AccountManagerCallback<Bundle>)eq(null), any(Handler.class)))
+                .thenReturn(mockFuture);
+        Context mockContext = mock(Context.class);
+        when(mockContext.getMainLooper()).thenReturn(null);
+        updateContextToSaveAccount(mockContext, "", acctName);
+        ReflectionUtils.setFieldValue(brokerProxy, "mContext", mockContext);
+        ReflectionUtils.setFieldValue(brokerProxy, "mAcctManager", mockAcctManager);
+        Method m = ReflectionUtils.getTestMethod(brokerProxy, "getAuthTokenInBackground",
+                authRequest.getClass());
+        Method clear = ReflectionUtils.getTestMethod(brokerProxy, "clearResultCache");
+        clear.invoke(brokerProxy);
+        AuthenticationSettings.INSTANCE.setBrokerResultCacheTimeToLive(60);
+        AuthenticationMetrics.getInstance().reset();
+        try {
+            m.invoke(brokerProxy, authRequest);
+            AuthenticationResult result = (AuthenticationResult)m.invoke(brokerProxy,
+                    authRequest);
+
+            assertEquals("token is expected", "token123", result.getAccessToken());
+            Mockito.verify(mockAcctManager, Mockito.times(1)).getAuthToken(any(Account.class),
+                    anyString(), any(Bundle.class), eq(false),
+                    (AccountManagerCallback<Bundle>)eq(null), any(Handler.class));
+            assertEquals("Result from memory is a cache hit", 1, AuthenticationMetrics
+                    .getInstance().getCount(AuthenticationMetrics.Counter.CACHE_HIT));
+            assertEquals("Only the broker call is recorded", 1, AuthenticationMetrics
+                    .getInstance().getRequestCount(AuthenticationMetrics.ENDPOINT_BROKER));
+
+            // Result for another tenant is not shared
+            Object otherTenantRequest = createAuthenticationRequest(
+                    "https://login.windows.net/othertenant", "resource", "client", "redirect",
+                    acctName, PromptBehavior.Auto, "", UUID.randomUUID());
+            m.invoke(brokerProxy, otherTenantRequest);
+            Mockito.verify(mockAcctManager, Mockito.times(2)).getAuthToken(any(Account.class),
+                    anyString(), any(Bundle.class), eq(false),
+                    (AccountManagerCallback<Bundle>)eq(null), any(Handler.class));
+
+            // Cleared results call the broker again
+            clear.invoke(brokerProxy);
+            m.invoke(brokerProxy, authRequest);
+            Mockito.verify(mockAcctManager, Mockito.times(3)).getAuthToken(any(Account.class),
+                    anyString(), any(Bundle.class), eq(false),
+                    (AccountManagerCallback<Bundle>)eq(null), any(Handler.class));
+        } finally {
+            AuthenticationSettings.INSTANCE.setBrokerResultCacheTimeToLive(0);
+            AuthenticationMetrics.getInstance().reset();
+            clear.invoke(brokerProxy);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public void testGetAuthTokenInBackground_VerifyUserInfo() throws IllegalAccessException,
             IllegalArgumentException, InvocationTargetException, ClassNotFoundException,
@@ -58,6 +58,26 @@ public class CacheKeyTests extends AndroidTestCase {
                 testKeySlash);
     }
 
+    public void testCreateStructuredKey() {
+        CacheKey key = CacheKey.create("Authority123/", "Resource123", "ClientId123", false,
+                "User123");
+        assertEquals("same string form", CacheKey.createCacheKey("Authority123/", "Resource123",
+                "ClientId123", false, "User123"), key.toString());
+        assertEquals("normalized authority", "authority123", key.getAuthority());
+        assertEquals("normalized client id", "clientid123", key.getClientId());
+        assertEquals("normalized user id", "user123", key.getUserId());
+
+        CacheKey sameKey = CacheKey.create("authority123", "Resource123", "clientid123", false,
+                "user123");
+        assertEquals("equal keys", key, sameKey);
+        assertEquals("equal hash codes", key.hashCode(), sameKey.hashCode());
+
+        CacheKey multiResourceKey = CacheKey.create("authority123", "Resource123",
+                "clientid123", true, "user123");
+        assertFalse("different flag", key.equals(multiResourceKey));
+        assertNull("resource is not stored", multiResourceKey.getResource());
+    }
+
     /**
      * empty values does not fail
      */
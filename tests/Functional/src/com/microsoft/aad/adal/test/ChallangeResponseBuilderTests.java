@@ -84,6 +84,47 @@ public class ChallangeResponseBuilderTests extends AndroidTestHelper {
                 AuthenticationConstants.Broker.CHALLANGE_RESPONSE_TYPE, "signedJwtHere", context)));
     }
 
+    public void testGetChallangeResponseFromHeader_ProxyReusedUntilThumbprintChanges()
+            throws ClassNotFoundException, InstantiationException, IllegalAccessException,
+            IllegalArgumentException, InvocationTargetException, NoSuchMethodException,
+            NoSuchFieldException, NoSuchAlgorithmException {
+        KeyPair keyPair = getKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey)keyPair.getPublic();
+        RSAPrivateKey privateKey = (RSAPrivateKey)keyPair.getPrivate();
+        String submitUrl = "http://fs.contoso.com/adfs/services/trust";
+        X509Certificate mockCert = mock(X509Certificate.class);
+        MockDeviceCertProxy.reset();
+        MockDeviceCertProxy.sThumbPrint = "thumbprintA";
+        MockDeviceCertProxy.sPrivateKey = privateKey;
+        MockDeviceCertProxy.sPublicKey = publicKey;
+        MockDeviceCertProxy.sCertificate = mockCert;
+        IJWSBuilder mockJwsBuilder = mock(IJWSBuilder.class);
+        when(mockJwsBuilder.generateSignedJWT("nonce", submitUrl, privateKey, publicKey, mockCert))
+                .thenReturn("signedJwtHere");
+        Object handler = getInstance(mockJwsBuilder);
+        Method m = ReflectionUtils.getTestMethod(handler, "getChallangeResponseFromHeader",
+                String.class, String.class);
+
+        m.invoke(handler, getChallangeHeader("thumbprintA"), submitUrl);
+        int createdCount = MockDeviceCertProxy.sCreatedCount;
+        m.invoke(handler, getChallangeHeader("thumbprintA"), submitUrl);
+        assertEquals("Proxy is reused", createdCount, MockDeviceCertProxy.sCreatedCount);
+
+        // Device is registered again with another certificate
+        MockDeviceCertProxy.sThumbPrint = "thumbprintB";
+        Object response = m.invoke(handler, getChallangeHeader("thumbprintB"), submitUrl);
+        assertEquals("Proxy is created again", createdCount + 1,
+                MockDeviceCertProxy.sCreatedCount);
+        String authHeaderValue = (String)ReflectionUtils.getFieldValue(response,
+                "mAuthorizationHeaderValue");
+        assertTrue("Response is signed", authHeaderValue.contains("AuthToken=\"signedJwtHere\""));
+    }
+
+    private String getChallangeHeader(String thumbprint) {
+        return CERT_AUTH_TYPE + " Nonce=\"nonce\",CertThumbprint=\"" + thumbprint
+                + "\",Version=\"1.0\",Context=\"context\"";
+    }
+
     public void testGetChallangeResponseFromHeader_Negative() throws ClassNotFoundException,
             InstantiationException, IllegalAccessException, IllegalArgumentException,
             InvocationTargetException, NoSuchMethodException, NoSuchFieldException,
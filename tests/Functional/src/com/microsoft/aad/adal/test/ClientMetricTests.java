@@ -7,6 +7,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.aad.adal.AuthenticationMetrics;
 
 public class ClientMetricTests extends AndroidTestHelper {
 
@@ -36,17 +41,85 @@ public class ClientMetricTests extends AndroidTestHelper {
         HashMap<String, String> headers = new HashMap<String, String>();
         Method beginMethod = ReflectionUtils.getTestMethod(clientMetrics,
                 "beginClientMetricsRecord", URL.class, UUID.class, headers.getClass());
-        beginMethod.invoke(clientMetrics, endpointAdfs, correlationId, headers);
+        Object record = beginMethod.invoke(clientMetrics, endpointAdfs, correlationId, headers);
+
+        Method lastErr = ReflectionUtils.getTestMethod(record, "setLastError", String.class);
+        lastErr.invoke(record, "lastErrorTest");
 
         Method endMethod = ReflectionUtils.getTestMethod(clientMetrics, "endClientMetricsRecord",
-                String.class, UUID.class);
-        endMethod.invoke(clientMetrics, "instance", correlationId);
+                record.getClass(), String.class);
+        endMethod.invoke(clientMetrics, record, "instance");
 
-        Method lastErr = ReflectionUtils.getTestMethod(clientMetrics, "setLastError", String.class);
-        lastErr.invoke(clientMetrics, "lastErrorTest");
         // next call will report error
         assertEquals("CorrelationId is empty", correlationId,
                 ReflectionUtils.getFieldValue(clientMetrics, "mLastCorrelationId"));
+        HashMap<String, String> nextHeaders = new HashMap<String, String>();
+        beginMethod.invoke(clientMetrics, endpointAdfs, UUID.randomUUID(), nextHeaders);
+        assertEquals("Last error is reported", "lastErrorTest",
+                nextHeaders.get("x-client-last-error"));
+        assertEquals("Last request is reported", correlationId.toString(),
+                nextHeaders.get("x-client-last-request"));
+    }
+
+    public void testConcurrentRecordsAreAggregated() throws Exception {
+        final Object clientMetrics = getInstance();
+        final AuthenticationMetrics metrics = AuthenticationMetrics.getInstance();
+        metrics.reset();
+        final AtomicInteger notified = new AtomicInteger();
+        metrics.setListener(new AuthenticationMetrics.IMetricsListener() {
+            @Override
+            public void onRequestCompleted(String endpointType, long latencyNanos,
+                    UUID correlationId, String error) {
+                if (AuthenticationMetrics.ENDPOINT_TOKEN.equals(endpointType)
+                        && latencyNanos >= 0) {
+                    notified.incrementAndGet();
+                }
+            }
+        });
+
+        final URL endpoint = new URL("https://login.windows.net/testtenant/oauth2/token");
+        final Method beginMethod = ReflectionUtils.getTestMethod(clientMetrics,
+                "beginClientMetricsRecord", URL.class, UUID.class, HashMap.class);
+        final int threadCount = 8;
+        final int requestsPerThread = 25;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < requestsPerThread; j++) {
+                            Object record = beginMethod.invoke(clientMetrics, endpoint,
+                                    UUID.randomUUID(), new HashMap<String, String>());
+                            Method endMethod = ReflectionUtils.getTestMethod(clientMetrics,
+                                    "endClientMetricsRecord", record.getClass(), String.class);
+                            endMethod.invoke(clientMetrics, record,
+                                    AuthenticationMetrics.ENDPOINT_TOKEN);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        assertTrue("Threads are done", done.await(REQUEST_TIME_OUT, TimeUnit.MILLISECONDS));
+        metrics.setListener(null);
+        final int total = threadCount * requestsPerThread;
+        assertEquals("No failures", 0, failures.get());
+        assertEquals("All requests are counted", total,
+                metrics.getRequestCount(AuthenticationMetrics.ENDPOINT_TOKEN));
+        long histogramTotal = 0;
+        for (long count : metrics.getLatencyHistogram(AuthenticationMetrics.ENDPOINT_TOKEN)) {
+            histogramTotal += count;
+        }
+        assertEquals("Histogram has all requests", total, histogramTotal);
+        assertEquals("Listener is notified", total, notified.get());
+        assertEquals("Other endpoint is empty", 0,
+                metrics.getRequestCount(AuthenticationMetrics.ENDPOINT_BROKER));
     }
 
     private Object getInstance() throws ClassNotFoundException {
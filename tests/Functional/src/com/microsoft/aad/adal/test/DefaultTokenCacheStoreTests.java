@@ -18,7 +18,11 @@
 
 package com.microsoft.aad.adal.test;
 
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
@@ -53,10 +57,12 @@ import com.microsoft.aad.adal.AuthenticationResult;
 import com.microsoft.aad.adal.AuthenticationSettings;
 import com.microsoft.aad.adal.CacheKey;
 import com.microsoft.aad.adal.DefaultTokenCacheStore;
+import com.microsoft.aad.adal.ICacheKeyFilter;
 import com.microsoft.aad.adal.ITokenCacheStore;
 import com.microsoft.aad.adal.Logger;
 import com.microsoft.aad.adal.StorageHelper;
 import com.microsoft.aad.adal.TokenCacheItem;
+import com.microsoft.aad.adal.UserInfo;
 
 public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
 
@@ -116,6 +122,35 @@ public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
         assertNotNull("Has item", item);
     }
 
+    public void testGetAllWithKeyFilter() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
+
+        Iterator<TokenCacheItem> results = store.getAll(new ICacheKeyFilter() {
+            @Override
+            public boolean accept(CacheKey key) {
+                return "resource2".equals(key.getResource());
+            }
+        });
+        int count = 0;
+        while (results.hasNext()) {
+            assertEquals("Same resource", "resource2", results.next().getResource());
+            count++;
+        }
+        assertEquals("Items for resource", 2, count);
+
+        results = store.getAll(new ICacheKeyFilter() {
+            @Override
+            public boolean accept(CacheKey key) {
+                return key.getIsMultipleResourceRefreshToken() && key.getResource() == null
+                        && "userid2".equals(key.getUserId())
+                        && "clientid2".equals(key.getClientId());
+            }
+        });
+        assertTrue("Has item", results.hasNext());
+        assertEquals("Multi resource token", "user2token2Broad", results.next().getAccessToken());
+        assertFalse("No more items", results.hasNext());
+    }
+
     public void testGetUniqueUsers() throws NoSuchAlgorithmException, NoSuchPaddingException {
         DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
         HashSet<String> users = store.getUniqueUsersWithTokenCache();
@@ -245,6 +280,96 @@ public class DefaultTokenCacheStoreTests extends BaseTokenStoreTests {
         assertEquals("token size", 0, tokens.size());
     }
 
+    public void testQueryIndexFollowsMutations() throws NoSuchAlgorithmException,
+            NoSuchPaddingException {
+        DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
+        assertEquals("token size", 1, store.getTokensForResource("resource").size());
+
+        // Index is updated for the same key
+        String key = CacheKey.createCacheKey(testItem);
+        testItem.setResource("resource3");
+        testItem.setUserInfo(new UserInfo("userid3", "givenName", "familyName", "identity",
+                "userid3"));
+        store.setItem(key, testItem);
+        assertEquals("token size", 0, store.getTokensForResource("resource").size());
+        assertEquals("token size", 1, store.getTokensForResource("resource3").size());
+        assertEquals("token size", 1, store.getTokensForUser("USERID3").size());
+        assertTrue("Has user", store.getUniqueUsersWithTokenCache().contains("userid3"));
+
+        store.removeItem(key);
+        assertEquals("token size", 0, store.getTokensForUser("userid3").size());
+        assertFalse("No user", store.getUniqueUsersWithTokenCache().contains("userid3"));
+
+        store.removeAll();
+        assertEquals("token size", 0, store.getTokensForResource("resource2").size());
+        store.setItem(key, testItem);
+        assertEquals("token size", 1, store.getTokensForResource("resource3").size());
+    }
+
+    public void testMemoryTier() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        AuthenticationSettings.INSTANCE.setDefaultCacheMemorySize(10);
+        try {
+            DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
+            String key = CacheKey.createCacheKey(testItem);
+
+            TokenCacheItem item = store.getItem(key);
+            assertEquals("token content", "token", item.getAccessToken());
+
+            // Returned item is a copy
+            item.setAccessToken("modified");
+            item = store.getItem(key);
+            assertEquals("token content", "token", item.getAccessToken());
+
+            // Write-through
+            item.setAccessToken("updated");
+            store.setItem(key, item);
+            assertEquals("token content", "updated", store.getItem(key).getAccessToken());
+
+            store.removeItem(key);
+            assertNull("Token cache item is expected to be null", store.getItem(key));
+            assertFalse("Item is not expected", store.contains(key));
+        } finally {
+            AuthenticationSettings.INSTANCE.setDefaultCacheMemorySize(0);
+        }
+    }
+
+    public void testMemoryTierSkipsDecryptionAndSeesOtherWriters() throws Exception {
+        AuthenticationSettings.INSTANCE.setDefaultCacheMemorySize(10);
+        Field encryptHelper = DefaultTokenCacheStore.class.getDeclaredField("sHelper");
+        encryptHelper.setAccessible(true);
+        StorageHelper helper = null;
+        try {
+            DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
+            String key = CacheKey.createCacheKey(testItem);
+            assertEquals("token content", "token", store.getItem(key).getAccessToken());
+
+            helper = (StorageHelper)encryptHelper.get(null);
+            StorageHelper spyHelper = spy(helper);
+            encryptHelper.set(null, spyHelper);
+
+            // Item is read from the memory tier
+            assertEquals("token content", "token", store.getItem(key).getAccessToken());
+            verify(spyHelper, never()).decrypt(anyString());
+
+            // Another writer changes the stored value
+            DefaultTokenCacheStore otherStore = (DefaultTokenCacheStore)getTokenCacheStore();
+            TokenCacheItem item = otherStore.getItem(key);
+            item.setAccessToken("other writer");
+            otherStore.setItem(key, item);
+
+            // Change listener is called on the main thread
+            getInstrumentation().waitForIdleSync();
+            assertEquals("Memory tier is invalidated", "other writer", store.getItem(key)
+                    .getAccessToken());
+        } finally {
+            if (helper != null) {
+                encryptHelper.set(null, helper);
+            }
+
+            AuthenticationSettings.INSTANCE.setDefaultCacheMemorySize(0);
+        }
+    }
+
     public void testExpireBuffer() throws NoSuchAlgorithmException, NoSuchPaddingException {
         DefaultTokenCacheStore store = (DefaultTokenCacheStore)setupItems();
 
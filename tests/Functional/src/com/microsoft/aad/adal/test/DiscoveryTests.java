@@ -24,8 +24,13 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.Set;
 
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+
 import com.microsoft.aad.adal.ADALError;
 import com.microsoft.aad.adal.HttpWebResponse;
 import com.microsoft.aad.adal.IWebRequestHandler;
@@ -234,6 +239,46 @@ public class DiscoveryTests extends AndroidTestHelper {
         assertTrue("Instance should be valid", response.result);
     }
 
+    @SuppressWarnings("unchecked")
+    public void testIsValidAuthorityFromPersistedCache() throws Exception {
+        Context context = getInstrumentation().getTargetContext();
+        SharedPreferences prefs = context.getSharedPreferences("com.microsoft.aad.adal.discovery",
+                Activity.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        Class<?> c = Class.forName("com.microsoft.aad.adal.Discovery");
+        Constructor<?> constructor = c.getDeclaredConstructor(Context.class);
+        constructor.setAccessible(true);
+        Object discovery = constructor.newInstance(context);
+        ReflectionUtils.setFieldValue(discovery, "mWebrequestHandler", getMockRequest(
+                "{\"tenant_discovery_endpoint\":\"https://login.persisted.net/common/discovery\"}",
+                200));
+        final TestResponse response = new TestResponse();
+        final URL endpoint = new URL("https://login.persisted.net/common");
+        callIsValidAuthority(discovery, endpoint, response, true);
+
+        assertTrue("Instance should be valid", response.result);
+        assertTrue("Host is saved", prefs.getString("login.persisted.net", "").contains(
+                "login.persisted.net/common/discovery"));
+
+        // Simulate app restart. Saved host is used without a query.
+        ((Set<String>)ReflectionUtils.getFieldValue(discovery, "sValidHosts"))
+                .remove("login.persisted.net");
+        ((Map<String, ?>)ReflectionUtils.getFieldValue(discovery, "sDiscoveryCache")).clear();
+        ReflectionUtils.setFieldValue(discovery, "sDiscoveryCacheLoaded", false);
+        discovery = constructor.newInstance(context);
+        ReflectionUtils.setFieldValue(discovery, "mWebrequestHandler",
+                getMockRequest("{\"error\":\"invalid_instance\"}", 400));
+        callIsValidAuthority(discovery, endpoint, response, true);
+
+        assertTrue("Instance should be valid from persisted cache", response.result);
+        Object entry = ((Map<String, ?>)ReflectionUtils.getFieldValue(discovery,
+                "sDiscoveryCache")).get("login.persisted.net");
+        assertEquals("Tenant discovery endpoint is loaded from the saved host",
+                "https://login.persisted.net/common/discovery",
+                ReflectionUtils.getFieldValue(entry, "mTenantDiscoveryEndpoint"));
+        prefs.edit().clear().commit();
+    }
+
     class TestResponse {
         Boolean result;
 
@@ -19,8 +19,10 @@
 package com.microsoft.aad.adal.test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
 import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
@@ -34,6 +36,7 @@ import com.microsoft.aad.adal.ITokenCacheStore;
 import com.microsoft.aad.adal.Logger;
 import com.microsoft.aad.adal.Logger.ILogger;
 import com.microsoft.aad.adal.Logger.LogLevel;
+import com.microsoft.aad.adal.MemoryTokenCacheStore;
 import com.microsoft.aad.adal.TokenCacheItem;
 import com.microsoft.aad.adal.UserInfo;
 
@@ -128,6 +131,45 @@ public class FileTokenCacheStoreTests extends AndroidTestHelper {
         assertTrue("Verify message ", logger.logMessage.contains(msgToCheck));
     }
 
+    public void testMigrateFromSerializedCacheFile() throws Exception {
+        String file = FILE_DEFAULT_NAME + "testMigrate";
+        File directory = targetContex.getDir(targetContex.getPackageName(), Context.MODE_PRIVATE);
+        File mock = new File(directory, file);
+        TokenCacheItem item = new TokenCacheItem();
+        item.setAccessToken("token");
+        item.setAuthority("authority");
+        item.setClientId("clientid");
+        item.setResource("resource");
+        item.setUserInfo(new UserInfo("userid", "givenName", "familyName", "identity", "userid"));
+        MemoryTokenCacheStore oldCache = new MemoryTokenCacheStore();
+        oldCache.setItem(CacheKey.createCacheKey(item), item);
+        FileOutputStream outputStream = new FileOutputStream(mock);
+        ObjectOutputStream objectStream = new ObjectOutputStream(outputStream);
+        objectStream.writeObject(oldCache);
+        objectStream.close();
+
+        FileTokenCacheStore store = new FileTokenCacheStore(targetContex, file);
+        TokenCacheItem loaded = store.getItem(CacheKey.createCacheKey(item));
+        assertNotNull("Item from earlier format is loaded", loaded);
+        assertEquals("Same access token", "token", loaded.getAccessToken());
+
+        // Next write converts the file
+        store.setItem("key2", item);
+        FileInputStream inputStream = new FileInputStream(mock);
+        int header = inputStream.read() << 8 | inputStream.read();
+        inputStream.close();
+        assertTrue("File is not java serialization anymore", header != 0xACED);
+
+        store = new FileTokenCacheStore(targetContex, file);
+        loaded = store.getItem(CacheKey.createCacheKey(item));
+        assertNotNull("Item is loaded from new format", loaded);
+        assertEquals("Same resource", "resource", loaded.getResource());
+        assertEquals("Same user", "userid", loaded.getUserInfo().getUserId());
+        assertEquals("Same given name", "givenName", loaded.getUserInfo().getGivenName());
+        assertNotNull("Second item", store.getItem("key2"));
+        store.removeAll();
+    }
+
     public void testGetItem() {
         String file = FILE_DEFAULT_NAME + "testGetItem";
         setupCache(file);
@@ -150,18 +192,125 @@ public class FileTokenCacheStoreTests extends AndroidTestHelper {
         TokenCacheItem item = store.getItem(CacheKey.createCacheKey(testItem));
         assertNotNull("Token cache item is expected to be NOT null", item);
 
-        // Change file permissions to cause an error
+        // Change directory and file permissions to cause an error. Changes
+        // are appended to the journal and snapshot is written to a temp file
+        // in the same directory and renamed.
         CustomLogger logger = new CustomLogger();
         Logger.getInstance().setExternalLogger(logger);
         File directory = targetContex.getDir(targetContex.getPackageName(), Context.MODE_PRIVATE);
-        File mock = new File(directory, file);
-        mock.setWritable(false);
+        File[] files = directory.listFiles();
+        for (File cacheFile : files) {
+            cacheFile.setWritable(false);
+        }
+        directory.setWritable(false);
         store.removeItem(CacheKey.createCacheKey(testItem));
 
         assertEquals("Permission issue", ADALError.DEVICE_FILE_CACHE_IS_NOT_WRITING_TO_FILE,
                 logger.logErrorCode);
 
-        mock.setWritable(true);
+        directory.setWritable(true);
+        for (File cacheFile : files) {
+            cacheFile.setWritable(true);
+        }
+    }
+
+    public void testWriteDelayAndFlush() {
+        String file = FILE_DEFAULT_NAME + "testWriteDelay";
+        setupCache(file);
+        long delay = 60000;
+        FileTokenCacheStore store = new FileTokenCacheStore(targetContex, file, delay);
+        store.removeItem(CacheKey.createCacheKey(testItem));
+        store.removeItem(CacheKey.createCacheKey(testItem2));
+
+        // Changes are not written to the file yet
+        ITokenCacheStore storeFromFile = new FileTokenCacheStore(targetContex, file);
+        assertNotNull("Item is expected in the file",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem)));
+
+        store.flush();
+        storeFromFile = new FileTokenCacheStore(targetContex, file);
+        assertNull("Item is not expected after flush",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem)));
+        assertNull("Item is not expected after flush",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem2)));
+        storeFromFile.removeAll();
+    }
+
+    public void testFlushWaitsForBackgroundWrite() throws Exception {
+        String file = FILE_DEFAULT_NAME + "testFlushWaits";
+        setupCache(file);
+        final FileTokenCacheStore store = new FileTokenCacheStore(targetContex, file, 60000);
+        store.removeItem(CacheKey.createCacheKey(testItem));
+        final Method writePending = ReflectionUtils.getTestMethod(store, "writePending");
+        Object fileLock = ReflectionUtils.getFieldValue(store, "mFileLock");
+        Thread backgroundWrite = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writePending.invoke(store);
+                } catch (Exception e) {
+                    fail("writePending failed: " + e.getMessage());
+                }
+            }
+        });
+        Thread flush = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.flush();
+            }
+        });
+
+        synchronized (fileLock) {
+            // Background write has started and waits for the file
+            backgroundWrite.start();
+            while ((Boolean)ReflectionUtils.getFieldValue(store, "mWriteScheduled")) {
+                Thread.sleep(10);
+            }
+
+            flush.start();
+            flush.join(500);
+            assertTrue("Flush waits for the write in progress", flush.isAlive());
+        }
+
+        flush.join();
+        backgroundWrite.join();
+        ITokenCacheStore storeFromFile = new FileTokenCacheStore(targetContex, file);
+        assertNull("Item is not expected after flush",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem)));
+        storeFromFile.removeAll();
+    }
+
+    public void testJournalReplayAndCompaction() {
+        String file = FILE_DEFAULT_NAME + "testJournal";
+        setupCache(file);
+        File directory = targetContex.getDir(targetContex.getPackageName(), Context.MODE_PRIVATE);
+        File journal = new File(directory, file + ".journal");
+        assertTrue("Changes are appended to the journal", journal.exists());
+
+        FileTokenCacheStore store = new FileTokenCacheStore(targetContex, file);
+        store.removeItem(CacheKey.createCacheKey(testItem));
+        testItem2.setAccessToken("updated");
+        store.setItem(CacheKey.createCacheKey(testItem2), testItem2);
+
+        ITokenCacheStore storeFromFile = new FileTokenCacheStore(targetContex, file);
+        assertNull("Removed item is not loaded",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem)));
+        assertEquals("Updated item is loaded", "updated",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem2)).getAccessToken());
+
+        // Journal is compacted when it grows larger than the snapshot
+        long maxJournalSize = 0;
+        for (int i = 0; i < 200; i++) {
+            testItem2.setAccessToken("token" + i);
+            store.setItem(CacheKey.createCacheKey(testItem2), testItem2);
+            maxJournalSize = Math.max(maxJournalSize, journal.length());
+        }
+
+        assertTrue("Journal is compacted", journal.length() < maxJournalSize);
+        storeFromFile = new FileTokenCacheStore(targetContex, file);
+        assertEquals("Last change is loaded", "token199",
+                storeFromFile.getItem(CacheKey.createCacheKey(testItem2)).getAccessToken());
+        store.removeAll();
     }
 
     public void testRemoveItem() {
@@ -18,6 +18,9 @@
 
 package com.microsoft.aad.adal.test;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -143,6 +146,52 @@ public class JwsBuilderTests extends AndroidTestHelper {
                 (X509Certificate)loadTestCertificate().getCertificateChain("My Key Chain")[0]);
     }
 
+    public void testGenerateSignedJWT_HeaderChangesWithCertificate()
+            throws NoSuchAlgorithmException, CertificateEncodingException, ClassNotFoundException,
+            InstantiationException, IllegalAccessException, IllegalArgumentException,
+            InvocationTargetException, NoSuchMethodException, NoSuchFieldException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        KeyPair keyPair = keyGen.genKeyPair();
+        RSAPublicKey publicKey = (RSAPublicKey)keyPair.getPublic();
+        RSAPrivateKey privateKey = (RSAPrivateKey)keyPair.getPrivate();
+        X509Certificate mockCert = mock(X509Certificate.class);
+        when(mockCert.getEncoded()).thenReturn(new byte[] {
+                1, 2, 3
+        });
+        X509Certificate renewedCert = mock(X509Certificate.class);
+        when(renewedCert.getEncoded()).thenReturn(new byte[] {
+                4, 5, 6
+        });
+        Object jwsBuilder = getInstance();
+        Method m = ReflectionUtils.getTestMethod(jwsBuilder, "generateSignedJWT", String.class,
+                String.class, RSAPrivateKey.class, RSAPublicKey.class, X509Certificate.class);
+
+        String first = (String)m.invoke(jwsBuilder, "nonce1", "https://someurl", privateKey,
+                publicKey, mockCert);
+        Object cachedHeader = ReflectionUtils.getFieldValue(jwsBuilder, "sLastHeader");
+        assertNotNull("Header is cached", cachedHeader);
+        String second = (String)m.invoke(jwsBuilder, "nonce2", "https://someurl", privateKey,
+                publicKey, mockCert);
+
+        assertSame("Header is reused for the same certificate", cachedHeader,
+                ReflectionUtils.getFieldValue(jwsBuilder, "sLastHeader"));
+
+        String renewed = (String)m.invoke(jwsBuilder, "nonce3", "https://someurl", privateKey,
+                publicKey, renewedCert);
+
+        assertNotSame("Header is built again for the renewed certificate", cachedHeader,
+                ReflectionUtils.getFieldValue(jwsBuilder, "sLastHeader"));
+        assertEquals("Same header for the same certificate", getHeader(first), getHeader(second));
+        assertFalse("Claims are different", first.equals(second));
+        assertFalse("Header has the renewed certificate",
+                getHeader(first).equals(getHeader(renewed)));
+    }
+
+    private String getHeader(String jws) {
+        return jws.substring(0, jws.indexOf("."));
+    }
+
     private void testSignedJWT(boolean validSignature, String nonce, String url,
             RSAPrivateKey privKey, RSAPublicKey publicKey, X509Certificate cert)
             throws ClassNotFoundException, InstantiationException, IllegalAccessException,
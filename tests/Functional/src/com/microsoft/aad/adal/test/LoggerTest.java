@@ -21,6 +21,8 @@ package com.microsoft.aad.adal.test;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.microsoft.aad.adal.ADALError;
 import com.microsoft.aad.adal.AuthenticationContext;
@@ -180,6 +182,45 @@ public class LoggerTest extends AndroidTestHelper {
         assertTrue("same log message", response.message.contains("testMessage") && response.message.contains(testId.toString()));
     }
 
+    public void testFormattedMessageAndAsyncLogging() throws InterruptedException {
+        final TestLogResponse response = new TestLogResponse();
+        final CountDownLatch signal = new CountDownLatch(1);
+        Logger.getInstance().setExternalLogger(new ILogger() {
+
+            @Override
+            public void Log(String tag, String message, String additionalMessage, LogLevel level,
+                    ADALError errorCode) {
+                response.tag = tag;
+                response.message = message;
+                signal.countDown();
+            }
+        });
+
+        Logger.getInstance().setLogLevel(Logger.LogLevel.Warn);
+        assertFalse("verbose is not logged", Logger.getInstance().isLoggable(LogLevel.Verbose));
+        assertTrue("error is logged", Logger.getInstance().isLoggable(LogLevel.Error));
+        Logger.v("test", "formatted %s", new Object() {
+            @Override
+            public String toString() {
+                fail("Arguments are not formatted for disabled level");
+                return null;
+            }
+        });
+        assertNull("not logged", response.message);
+
+        Logger.getInstance().setLogLevel(Logger.LogLevel.Verbose);
+        Logger.getInstance().setAsyncExternalLogging(true);
+        try {
+            Logger.v("test", "formatted %s:%d", "message", 2);
+            assertTrue("Logged asynchronously",
+                    signal.await(REQUEST_TIME_OUT, TimeUnit.MILLISECONDS));
+            assertEquals("same log tag", "test", response.tag);
+            assertTrue("formatted message", response.message.contains("formatted message:2"));
+        } finally {
+            Logger.getInstance().setAsyncExternalLogging(false);
+        }
+    }
+
     public void testLogMessage() throws IllegalArgumentException, ClassNotFoundException,
             NoSuchMethodException, InstantiationException, IllegalAccessException,
             InvocationTargetException {
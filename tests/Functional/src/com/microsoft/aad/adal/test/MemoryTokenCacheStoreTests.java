@@ -23,7 +23,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
 import java.util.concurrent.CountDownLatch;
 
 import javax.crypto.NoSuchPaddingException;
@@ -125,6 +127,51 @@ public class MemoryTokenCacheStoreTests extends BaseTokenStoreTests {
         assertNull("Token cache item is expected to be null", item);
     }
 
+    public void testRemoveItemIfRefreshToken() throws Exception {
+        MemoryTokenCacheStore store = (MemoryTokenCacheStore)setupItems();
+        String key = CacheKey.createCacheKey(testItem);
+        String usedRefreshToken = testItem.getRefreshToken();
+        Method removeItem = ReflectionUtils.getTestMethod(store, "removeItemIfRefreshToken",
+                String.class, String.class);
+
+        // Another request stores a new refresh token
+        TokenCacheItem refreshed = new TokenCacheItem();
+        refreshed.setRefreshToken("newRefreshToken");
+        store.setItem(key, refreshed);
+        assertFalse("updated item is kept", (Boolean)removeItem.invoke(store, key, usedRefreshToken));
+        assertSame("updated item", refreshed, store.getItem(key));
+
+        assertTrue("item is removed", (Boolean)removeItem.invoke(store, key, "newRefreshToken"));
+        assertNull("item is removed", store.getItem(key));
+    }
+
+    public void testBoundedCacheEvictsExpiredThenLeastRecentlyUsed() throws InterruptedException {
+        MemoryTokenCacheStore store = new MemoryTokenCacheStore(3);
+        TokenCacheItem expired = new TokenCacheItem();
+        expired.setAccessToken("expiredToken");
+        expired.setExpiresOn(new Date(System.currentTimeMillis() - 1000));
+        TokenCacheItem withRefreshToken = new TokenCacheItem();
+        withRefreshToken.setRefreshToken("refreshToken");
+
+        store.setItem("expired", expired);
+        store.setItem("first", withRefreshToken);
+        Thread.sleep(1);
+        store.setItem("second", withRefreshToken);
+        Thread.sleep(1);
+        store.getItem("first");
+
+        store.setItem("third", withRefreshToken);
+        assertFalse("expired item is evicted first", store.contains("expired"));
+        assertEquals("eviction count", 1, store.getEvictionCount());
+        assertEquals("expired eviction count", 1, store.getExpiredEvictionCount());
+
+        store.setItem("fourth", withRefreshToken);
+        assertFalse("least recently used item is evicted", store.contains("second"));
+        assertTrue("recently used item is kept", store.contains("first"));
+        assertEquals("eviction count", 2, store.getEvictionCount());
+        assertEquals("expired eviction count", 1, store.getExpiredEvictionCount());
+    }
+
     /**
      * memory cache is shared between context
      * 
@@ -43,6 +43,12 @@ public class MockDeviceCertProxy implements IDeviceCertificate {
 
     static boolean sValidIssuer = false;
 
+    static int sCreatedCount = 0;
+
+    public MockDeviceCertProxy() {
+        sCreatedCount++;
+    }
+
     public static void reset() {
         sCertificate = null;
         sPrivateKey = null;
@@ -592,6 +592,27 @@ public class OauthTests extends AndroidTestCase {
                 logResponse2.errorCode.equals(ADALError.CORRELATION_ID_FORMAT));
     }
 
+    @SmallTest
+    public void testprocessTokenResponse_Utf8AndUnknownFields() throws IllegalArgumentException,
+            IllegalAccessException, InvocationTargetException, ClassNotFoundException,
+            NoSuchMethodException, InstantiationException, UnsupportedEncodingException {
+        Object request = createAuthenticationRequest("authority", "resource", "client", "redirect",
+                "loginhint", null, null, null);
+        Object oauth = createOAuthInstance(request);
+        Method m = ReflectionUtils.getTestMethod(oauth, "processTokenResponse",
+                Class.forName("com.microsoft.aad.adal.HttpWebResponse"));
+        String json = "{\"error\":\"invalid_grant\",\"context\":{\"nested\":[1,{\"a\":null}]},"
+                + "\"error_description\":\"Jos\u00e9 \u00fcberpr\u00fcfen\",\"error_codes\":[70000,70001],"
+                + "\"submit_url\":null}";
+        HttpWebResponse mockResponse = new HttpWebResponse(400, json.getBytes("UTF-8"), null);
+
+        AuthenticationResult result = (AuthenticationResult)m.invoke(oauth, mockResponse);
+
+        assertEquals("Error code", "invalid_grant", result.getErrorCode());
+        assertEquals("Description is decoded as UTF-8", "Jos\u00e9 \u00fcberpr\u00fcfen",
+                result.getErrorDescription());
+    }
+
     @SmallTest
     public void testprocessTokenResponseNegative() throws IllegalArgumentException,
             IllegalAccessException, InvocationTargetException, ClassNotFoundException,
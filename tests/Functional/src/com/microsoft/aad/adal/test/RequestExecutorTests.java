@@ -0,0 +1,276 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+package com.microsoft.aad.adal.test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+import com.microsoft.aad.adal.AuthenticationSettings;
+
+public class RequestExecutorTests extends AndroidTestCase {
+
+    private static final String AUTHORITY = "https://login.windows.net/common";
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private boolean mSerial;
+
+    private int mMaxRequests;
+
+    private int mMaxRequestsPerAuthority;
+
+    private ExecutorService mRequestExecutor;
+
+    private Object mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSerial = AuthenticationSettings.INSTANCE.getSerialRequestExecution();
+        mMaxRequests = AuthenticationSettings.INSTANCE.getMaxConcurrentRequests();
+        mMaxRequestsPerAuthority = AuthenticationSettings.INSTANCE
+                .getMaxConcurrentRequestsPerAuthority();
+        mRequestExecutor = AuthenticationSettings.INSTANCE.getRequestExecutor();
+        AuthenticationSettings.INSTANCE.setRequestExecutor(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mExecutor != null) {
+            ((ExecutorService)ReflectionUtils.getFieldValue(mExecutor, "mFastLane")).shutdownNow();
+            ((ExecutorService)ReflectionUtils.getFieldValue(mExecutor, "mNetworkPool"))
+                    .shutdownNow();
+        }
+
+        AuthenticationSettings.INSTANCE.setSerialRequestExecution(mSerial);
+        AuthenticationSettings.INSTANCE.setMaxConcurrentRequests(mMaxRequests);
+        AuthenticationSettings.INSTANCE.setMaxConcurrentRequestsPerAuthority(mMaxRequestsPerAuthority);
+        AuthenticationSettings.INSTANCE.setRequestExecutor(mRequestExecutor);
+        super.tearDown();
+    }
+
+    public void testSubmitCacheHitSkipsNetwork() throws Exception {
+        mExecutor = getExecutor();
+        final AtomicInteger networkCalls = new AtomicInteger();
+
+        Future<?> future = submit(AUTHORITY, new Callable<String>() {
+            @Override
+            public String call() {
+                return "cached";
+            }
+        }, new Callable<String>() {
+            @Override
+            public String call() {
+                networkCalls.incrementAndGet();
+                return "network";
+            }
+        });
+
+        assertEquals("Result from cache", "cached", future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Network work is not called", 0, networkCalls.get());
+    }
+
+    public void testSubmitCacheMissRunsNetwork() throws Exception {
+        mExecutor = getExecutor();
+        final AtomicInteger networkCalls = new AtomicInteger();
+
+        Future<?> future = submit(AUTHORITY, new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        }, new Callable<String>() {
+            @Override
+            public String call() {
+                networkCalls.incrementAndGet();
+                return "network";
+            }
+        });
+
+        assertEquals("Result from network", "network",
+                future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Network work is called once", 1, networkCalls.get());
+    }
+
+    public void testSubmitLimitsRequestsPerAuthority() throws Exception {
+        AuthenticationSettings.INSTANCE.setMaxConcurrentRequests(4);
+        AuthenticationSettings.INSTANCE.setMaxConcurrentRequestsPerAuthority(1);
+        mExecutor = getExecutor();
+        Method submit = ReflectionUtils.getTestMethod(mExecutor, "submit", String.class,
+                Callable.class);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch otherAuthorityDone = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < 3; i++) {
+            futures.add((Future<?>)submit.invoke(mExecutor, AUTHORITY,
+                    new TrackingWork(running, maxRunning)));
+        }
+
+        // Other authority is not queued behind the busy one
+        Future<?> other = (Future<?>)submit.invoke(mExecutor, "https://login.windows.net/other",
+                new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        otherAuthorityDone.countDown();
+                        return null;
+                    }
+                });
+
+        assertTrue("Other authority runs", otherAuthorityDone.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        other.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (Future<?> future : futures) {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        assertEquals("One request at a time for the authority", 1, maxRunning.get());
+    }
+
+    public void testSubmitSerialRunsInOrder() throws Exception {
+        AuthenticationSettings.INSTANCE.setSerialRequestExecution(true);
+        mExecutor = getExecutor();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < 3; i++) {
+            final String name = "request" + i;
+            futures.add(submit("https://login.windows.net/tenant" + i, new Callable<String>() {
+                @Override
+                public String call() {
+                    order.add(name + "-cache");
+                    return null;
+                }
+            }, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    new TrackingWork(running, maxRunning).call();
+                    order.add(name + "-network");
+                    return name;
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        assertEquals("One request at a time", 1, maxRunning.get());
+        assertEquals("Submission order", "[request0-cache, request0-network, request1-cache, "
+                + "request1-network, request2-cache, request2-network]", order.toString());
+    }
+
+    public void testSubmitRejectedByAppExecutor() throws Exception {
+        ExecutorService appExecutor = Executors.newSingleThreadExecutor();
+        appExecutor.shutdown();
+        AuthenticationSettings.INSTANCE.setRequestExecutor(appExecutor);
+        AuthenticationSettings.INSTANCE.setMaxConcurrentRequestsPerAuthority(1);
+        mExecutor = getExecutor();
+        Method submit = ReflectionUtils.getTestMethod(mExecutor, "submit", String.class,
+                Callable.class);
+
+        Future<?> cacheMiss = submit(AUTHORITY, new Callable<String>() {
+            @Override
+            public String call() {
+                return null;
+            }
+        }, new Callable<String>() {
+            @Override
+            public String call() {
+                return "network";
+            }
+        });
+        assertRejected(cacheMiss);
+
+        for (int i = 0; i < 2; i++) {
+            assertRejected((Future<?>)submit.invoke(mExecutor, AUTHORITY,
+                    new TrackingWork(new AtomicInteger(), new AtomicInteger())));
+        }
+
+        assertTrue("Authority lane is released", ((Map<?, ?>)ReflectionUtils.getFieldValue(
+                mExecutor, "mAuthorityLanes")).isEmpty());
+    }
+
+    private Object getExecutor() throws Exception {
+        return ReflectionUtils.getInstance("com.microsoft.aad.adal.RequestExecutor",
+                AuthenticationSettings.INSTANCE);
+    }
+
+    private static void assertRejected(Future<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("Rejected work is not expected to succeed");
+        } catch (ExecutionException e) {
+            assertTrue("Rejection is reported",
+                    e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private Future<?> submit(String authority, Callable<String> cacheLookup,
+            Callable<String> networkWork) throws Exception {
+        Method submit = ReflectionUtils.getTestMethod(mExecutor, "submit", String.class,
+                Callable.class, Callable.class);
+        return (Future<?>)submit.invoke(mExecutor, authority, cacheLookup, networkWork);
+    }
+
+    /**
+     * Records the highest number of work running at the same time.
+     */
+    private static class TrackingWork implements Callable<Void> {
+        private final AtomicInteger mRunning;
+
+        private final AtomicInteger mMaxRunning;
+
+        TrackingWork(AtomicInteger running, AtomicInteger maxRunning) {
+            mRunning = running;
+            mMaxRunning = maxRunning;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            int now = mRunning.incrementAndGet();
+            synchronized (mMaxRunning) {
+                if (now > mMaxRunning.get()) {
+                    mMaxRunning.set(now);
+                }
+            }
+
+            Thread.sleep(100);
+            mRunning.decrementAndGet();
+            return null;
+        }
+    }
+}
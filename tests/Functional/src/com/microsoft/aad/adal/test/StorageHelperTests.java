@@ -73,6 +73,47 @@ public class StorageHelperTests extends AndroidTestCase {
         encryptDecrypt(clearText);
     }
 
+    public void testEncryptDecrypt_MultipleThreads() throws Exception {
+        final Object storageHelper = getStorageHelper();
+        final Method mEncrypt = ReflectionUtils.getTestMethod(storageHelper, "encrypt",
+                String.class);
+        final Method mDecrypt = ReflectionUtils.getTestMethod(storageHelper, "decrypt",
+                String.class);
+        final String[] errors = new String[5];
+        Thread[] threads = new Thread[errors.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Each thread reuses its cipher and mac instances
+                        for (int j = 0; j < 20; j++) {
+                            String clearText = "Value" + index + "-" + j;
+                            String encrypted = (String)mEncrypt.invoke(storageHelper, clearText);
+                            String decrypted = (String)mDecrypt.invoke(storageHelper, encrypted);
+                            if (!clearText.equals(decrypted)) {
+                                errors[index] = "Not same text:" + decrypted;
+                                return;
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors[index] = e.toString();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (String error : errors) {
+            assertNull("No error", error);
+        }
+    }
+
     public void testEncryptDecrypt_NullEmpty() throws IllegalArgumentException,
             ClassNotFoundException, NoSuchMethodException, InstantiationException,
             IllegalAccessException, InvocationTargetException {
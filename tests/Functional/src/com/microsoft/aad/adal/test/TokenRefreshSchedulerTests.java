@@ -0,0 +1,128 @@
+// Copyright © Microsoft Open Technologies, Inc.
+//
+// All Rights Reserved
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS
+// OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION
+// ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A
+// PARTICULAR PURPOSE, MERCHANTABILITY OR NON-INFRINGEMENT.
+//
+// See the Apache License, Version 2.0 for the specific language
+// governing permissions and limitations under the License.
+
+
+package com.microsoft.aad.adal.test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import com.microsoft.aad.adal.AuthenticationSettings;
+
+public class TokenRefreshSchedulerTests extends AndroidTestCase {
+
+    private static final int MAX_SCHEDULED_REFRESH = 100;
+
+    private static final long ONE_HOUR_MS = 60 * 60 * 1000;
+
+    private static final Runnable NO_REFRESH = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private Object mScheduler;
+
+    private Method mSchedule;
+
+    private int mWindow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = ReflectionUtils.getNonPublicInstance("com.microsoft.aad.adal.TokenRefreshScheduler");
+        mSchedule = ReflectionUtils.getTestMethod(mScheduler, "schedule", String.class,
+                Date.class, Runnable.class);
+        mWindow = AuthenticationSettings.INSTANCE.getBackgroundRefreshWindow();
+        AuthenticationSettings.INSTANCE.setBackgroundRefreshWindow(600);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ScheduledFuture<?> future : getScheduled().values()) {
+            future.cancel(false);
+        }
+
+        AuthenticationSettings.INSTANCE.setBackgroundRefreshWindow(mWindow);
+        super.tearDown();
+    }
+
+    public void testScheduleBeforeExpirationBufferAndWindow() throws Exception {
+        long expiresOn = System.currentTimeMillis() + ONE_HOUR_MS;
+        mSchedule.invoke(mScheduler, "key", new Date(expiresOn), NO_REFRESH);
+
+        long expected = ONE_HOUR_MS
+                - (AuthenticationSettings.INSTANCE.getExpirationBuffer() + 600) * 1000L;
+        long delay = getScheduled().get("key").getDelay(TimeUnit.MILLISECONDS);
+        assertTrue("Refresh runs the window before the token is expired", delay <= expected
+                && delay > expected - 5000);
+
+        // Token that is already in the expiration buffer is not scheduled
+        mSchedule.invoke(mScheduler, "expired", new Date(System.currentTimeMillis() + 1000),
+                NO_REFRESH);
+        assertFalse("Expired token is not scheduled", getScheduled().containsKey("expired"));
+    }
+
+    public void testScheduleReplacesPreviousSchedule() throws Exception {
+        mSchedule.invoke(mScheduler, "key", new Date(System.currentTimeMillis() + ONE_HOUR_MS),
+                NO_REFRESH);
+        ScheduledFuture<?> first = getScheduled().get("key");
+        mSchedule.invoke(mScheduler, "key", new Date(System.currentTimeMillis() + 2
+                * ONE_HOUR_MS), NO_REFRESH);
+
+        assertTrue("Previous schedule is cancelled", first.isCancelled());
+        assertEquals("One schedule for the key", 1, getScheduled().size());
+        assertNotSame("Schedule is replaced", first, getScheduled().get("key"));
+    }
+
+    public void testScheduleLimit() throws Exception {
+        Date expiresOn = new Date(System.currentTimeMillis() + ONE_HOUR_MS);
+        for (int i = 0; i < MAX_SCHEDULED_REFRESH; i++) {
+            mSchedule.invoke(mScheduler, "key" + i, expiresOn, NO_REFRESH);
+        }
+
+        mSchedule.invoke(mScheduler, "overLimit", expiresOn, NO_REFRESH);
+        assertEquals("Schedules are limited", MAX_SCHEDULED_REFRESH, getScheduled().size());
+        assertFalse("Key over the limit is not scheduled", getScheduled().containsKey("overLimit"));
+
+        // Existing key can be scheduled again at the limit
+        mSchedule.invoke(mScheduler, "key0", expiresOn, NO_REFRESH);
+        assertTrue("Existing key is scheduled", getScheduled().containsKey("key0"));
+    }
+
+    public void testSchedulerIsSharedInProcess() throws Exception {
+        Class<?> clazz = Class.forName("com.microsoft.aad.adal.TokenRefreshScheduler");
+        Method getInstance = ReflectionUtils.getStaticTestMethod(clazz, "getInstance");
+
+        assertSame("Contexts share the scheduler", getInstance.invoke(null),
+                getInstance.invoke(null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ScheduledFuture<?>> getScheduled() throws IllegalArgumentException,
+            NoSuchFieldException, IllegalAccessException, InvocationTargetException {
+        return (Map<String, ScheduledFuture<?>>)ReflectionUtils.getFieldValue(mScheduler,
+                "mScheduled");
+    }
+}
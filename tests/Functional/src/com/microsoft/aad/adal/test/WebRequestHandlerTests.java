@@ -18,14 +18,24 @@
 
 package com.microsoft.aad.adal.test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -35,6 +45,7 @@ import com.google.gson.Gson;
 import com.microsoft.aad.adal.AuthenticationConstants;
 import com.microsoft.aad.adal.AuthenticationConstants.AAD;
 import com.microsoft.aad.adal.AuthenticationContext;
+import com.microsoft.aad.adal.AuthenticationSettings;
 import com.microsoft.aad.adal.HttpWebResponse;
 import com.microsoft.aad.adal.WebRequestHandler;
 
@@ -97,6 +108,22 @@ public class WebRequestHandlerTests extends AndroidTestHelper {
                 .sendPost(getUrl(message), headers, null, "application/x-www-form-urlencoded");
     }
 
+    public void testReadBodyLargeContentLength() throws Exception {
+        Method m = ReflectionUtils.getStaticTestMethod(
+                Class.forName("com.microsoft.aad.adal.HttpWebRequest"), "readBody",
+                InputStream.class, int.class);
+        byte[] body = "response".getBytes(AuthenticationConstants.ENCODING_UTF8);
+
+        // Content length from the server is not used to allocate the body
+        byte[] read = (byte[])m.invoke(null, new ByteArrayInputStream(body), Integer.MAX_VALUE);
+        assertEquals("Body is read", "response", new String(read,
+                AuthenticationConstants.ENCODING_UTF8));
+
+        read = (byte[])m.invoke(null, new ByteArrayInputStream(body), body.length);
+        assertEquals("Body with content length is read", "response", new String(read,
+                AuthenticationConstants.ENCODING_UTF8));
+    }
+
     public void testNullUrl() {
         assertThrowsException(IllegalArgumentException.class, "url", new Runnable() {
             public void run() {
@@ -138,6 +165,57 @@ public class WebRequestHandlerTests extends AndroidTestHelper {
     /**
      * WebService returns the request headers in the response
      */
+    public void testGetRequestWithKeepAlive() {
+        AuthenticationSettings.INSTANCE.setUseHttpKeepAlive(true);
+        try {
+            WebRequestHandler request = new WebRequestHandler();
+
+            // Second request can reuse the connection of the first one
+            for (int i = 0; i < 2; i++) {
+                HttpWebResponse httpResponse = request.sendGet(getUrl(TEST_WEBAPI_URL),
+                        getTestHeaders("testabc", "value123"));
+                assertTrue("status is 200", httpResponse.getStatusCode() == 200);
+                String responseMsg = new String(httpResponse.getBody());
+                assertTrue("request header check", responseMsg.contains("testabc-value123"));
+            }
+        } finally {
+            AuthenticationSettings.INSTANCE.setUseHttpKeepAlive(false);
+        }
+    }
+
+    /**
+     * Server closes the first connection without a response. GET is retried
+     * on a new connection, POST is not sent again.
+     */
+    public void testKeepAliveRetryOnlyForGet() throws Exception {
+        AuthenticationSettings.INSTANCE.setUseHttpKeepAlive(true);
+        try {
+            WebRequestHandler request = new WebRequestHandler();
+            ClosingServer server = new ClosingServer();
+            try {
+                HttpWebResponse response = request.sendGet(server.getUrl(), null);
+                assertNull("GET is retried", response.getResponseException());
+                assertEquals("GET response", "ok", new String(response.getBody(), "UTF-8"));
+                assertEquals("GET is sent twice", 2, server.getConnectionCount());
+            } finally {
+                server.close();
+            }
+
+            server = new ClosingServer();
+            try {
+                HttpWebResponse response = request.sendPost(server.getUrl(), null,
+                        "grant_type=refresh_token".getBytes("UTF-8"),
+                        "application/x-www-form-urlencoded");
+                assertNotNull("POST is not retried", response.getResponseException());
+                assertEquals("POST is sent once", 1, server.getConnectionCount());
+            } finally {
+                server.close();
+            }
+        } finally {
+            AuthenticationSettings.INSTANCE.setUseHttpKeepAlive(false);
+        }
+    }
+
     public void testClientTraceInHeaders() {
         Log.d(TAG, "test get" + android.os.Process.myTid());
 
@@ -241,4 +319,71 @@ public class WebRequestHandlerTests extends AndroidTestHelper {
         }
         return null;
     }
+
+    /**
+     * Local server that closes the first connection after reading the
+     * request and answers the next ones.
+     */
+    private static class ClosingServer implements Runnable {
+        private final ServerSocket mServerSocket;
+
+        private final AtomicInteger mConnections = new AtomicInteger();
+
+        ClosingServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URL getUrl() throws MalformedURLException {
+            return new URL("http://localhost:" + mServerSocket.getLocalPort() + "/");
+        }
+
+        int getConnectionCount() {
+            return mConnections.get();
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        readRequest(socket.getInputStream());
+                        if (mConnections.incrementAndGet() > 1) {
+                            OutputStream out = socket.getOutputStream();
+                            out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok"
+                                    .getBytes("UTF-8"));
+                            out.flush();
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Server is closed
+            }
+        }
+
+        private static void readRequest(InputStream in) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            int contentLength = 0;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase(Locale.US).startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(line.indexOf(':') + 1)
+                            .trim());
+                }
+            }
+
+            for (int i = 0; i < contentLength; i++) {
+                reader.read();
+            }
+        }
+    }
 }